@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Moves logging off the threads that serve users. Records are placed in a fixed-size, lock-free ring buffer, and a single writer
+ * thread takes them out in batches and passes them to the real handlers, flushing those at most once per flush interval (or at once
+ * after a severe record). Messages are formatted by the handlers' formatters on the writer thread, so callers that log with
+ * parameters, such as <code>logger.log(Level.INFO, "User {0} joined.", nickname)</code>, do no formatting of their own.
+ *
+ * When the buffer is full, the policy set by securechat.log.overflow applies: "drop" (the default) discards the record and reports how
+ * many were discarded in the log once there is room again, while "block" makes the caller wait for space.
+ *
+ * The class and method that logged each record are found by walking the caller's stack, which is most of what logging still costs the
+ * caller. Setting securechat.log.callerInfo=false skips this, and records are written with only the logger's name.
+ *
+ * Configured by the system properties securechat.log.async (true by default), securechat.log.bufferSize (records, rounded up to a power
+ * of two; 8192 by default) and securechat.log.flushInterval (milliseconds; 1000 by default).
+ *
+ * @author David Arena
+ */
+public class AsyncLogHandler extends Handler {
+	/**
+	 * Whether the server should log through an asynchronous handler.
+	 */
+	public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("securechat.log.async"));
+
+	public static final int BUFFER_SIZE = Integer.getInteger("securechat.log.bufferSize", 8192);
+	public static final long FLUSH_INTERVAL = Long.getLong("securechat.log.flushInterval", 1000);
+	public static final boolean BLOCK_WHEN_FULL = "block".equalsIgnoreCase(System.getProperty("securechat.log.overflow"));
+	public static final boolean CALLER_INFO = !"false".equalsIgnoreCase(System.getProperty("securechat.log.callerInfo"));
+
+	private static final int BATCH = 256;
+	private static final long IDLE_PARK = TimeUnit.MILLISECONDS.toNanos(10);
+
+	private final Handler[] targets;
+	private final LogRecord[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong tail = new AtomicLong();
+	private volatile long head;
+	private final LongAdder dropped = new LongAdder();
+	private final Thread writer;
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a handler that passes records on to the given handlers, and starts its writer thread.
+	 * @param targets
+	 */
+	public AsyncLogHandler(Handler... targets) {
+		this.targets = targets.clone();
+		int capacity = Integer.highestOneBit(Math.max(2, BUFFER_SIZE) - 1) << 1;
+		slots = new LogRecord[capacity];
+		sequences = new AtomicLongArray(capacity);
+		for (int i = 0; i < capacity; i++)
+			sequences.set(i, i);
+		mask = capacity - 1;
+		writer = new Thread(this::drain, "SecureChatServer-log");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Replaces the handlers of a logger, including those it inherits from its parents, with a single asynchronous handler that writes
+	 * to all of them. The handler is flushed and closed when the JVM shuts down.
+	 *
+	 * @param logger
+	 * @return the installed handler
+	 */
+	public static AsyncLogHandler install(Logger logger) {
+		List<Handler> targets = new ArrayList<Handler>();
+		for (Handler h : logger.getHandlers()) {
+			logger.removeHandler(h);
+			targets.add(h);
+		}
+		for (Logger parent = logger; parent.getUseParentHandlers() && (parent = parent.getParent()) != null;)
+			Collections.addAll(targets, parent.getHandlers());
+		AsyncLogHandler async = new AsyncLogHandler(targets.toArray(new Handler[0]));
+		logger.setUseParentHandlers(false);
+		logger.addHandler(async);
+		Runtime.getRuntime().addShutdownHook(new Thread(async::close, "SecureChatServer-log-shutdown"));
+		return async;
+	}
+
+	/**
+	 * Queues a record for the writer thread. Never blocks unless the buffer is full and the overflow policy is "block".
+	 */
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record))
+			return;
+		//The caller has to be found from this thread's stack before the record changes threads
+		if (CALLER_INFO)
+			record.getSourceMethodName();
+		while (!offer(record)) {
+			if (!BLOCK_WHEN_FULL || closed) {
+				dropped.increment();
+				return;
+			}
+			LockSupport.parkNanos(this, TimeUnit.MICROSECONDS.toNanos(50));
+		}
+	}
+
+	private boolean offer(LogRecord record) {
+		while (true) {
+			long t = tail.get();
+			int index = (int) t & mask;
+			long diff = sequences.get(index) - t;
+			if (diff == 0) {
+				if (tail.compareAndSet(t, t + 1)) {
+					slots[index] = record;
+					sequences.set(index, t + 1);
+					return true;
+				}
+			}
+			else if (diff < 0)
+				return false;
+		}
+	}
+
+	private LogRecord poll() {
+		int index = (int) head & mask;
+		if (sequences.get(index) != head + 1)
+			return null;
+		LogRecord record = slots[index];
+		slots[index] = null;
+		sequences.set(index, head + slots.length);
+		head++;
+		return record;
+	}
+
+	/**
+	 * Runs on the writer thread until the handler is closed and the buffer is empty.
+	 */
+	private void drain() {
+		long nextFlush = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL);
+		boolean unflushed = false;
+		while (true) {
+			boolean urgent = false;
+			int written = 0;
+			LogRecord record;
+			while (written < BATCH && (record = poll()) != null) {
+				write(record);
+				urgent |= record.getLevel().intValue() >= Level.SEVERE.intValue();
+				written++;
+			}
+			long lost = dropped.sumThenReset();
+			if (lost > 0) {
+				LogRecord warning = new LogRecord(Level.WARNING, lost + " log records were dropped because the log buffer was full.");
+				warning.setLoggerName(AsyncLogHandler.class.getName());
+				warning.setSourceClassName(AsyncLogHandler.class.getName());
+				warning.setSourceMethodName("drain");
+				write(warning);
+				written++;
+			}
+			unflushed |= written > 0;
+
+			long now = System.nanoTime();
+			if (unflushed && (urgent || now - nextFlush >= 0)) {
+				flushTargets();
+				unflushed = false;
+				nextFlush = now + TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL);
+			}
+			if (written == 0) {
+				if (closed && tail.get() == head)
+					return;
+				LockSupport.parkNanos(this, IDLE_PARK);
+			}
+		}
+	}
+
+	private void write(LogRecord record) {
+		for (Handler target : targets) {
+			try {
+				target.publish(record);
+			}
+			catch (RuntimeException e) {
+				reportError(null, e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+	private void flushTargets() {
+		for (Handler target : targets) {
+			try {
+				target.flush();
+			}
+			catch (RuntimeException e) {
+				reportError(null, e, ErrorManager.FLUSH_FAILURE);
+			}
+		}
+	}
+
+	/**
+	 * @return roughly the number of records waiting to be written
+	 */
+	public int pending() {
+		return (int) (tail.get() - head);
+	}
+
+	/**
+	 * Flushes whatever the handlers have already been given. Records still in the buffer are flushed by the writer within the flush interval.
+	 */
+	@Override
+	public void flush() {
+		flushTargets();
+	}
+
+	/**
+	 * Stops accepting records, waits for the writer to write out those already queued, and closes the handlers.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Handler target : targets) {
+			target.close();
+		}
+	}
+}
@@ -0,0 +1,124 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Fans a message out to many users without making the sender wait. The message is built once by the caller, then each recipient's
+ * copy is encrypted and sent by a shared pool of workers, so recipients are handled in parallel and one slow user only delays their own copy.
+ * Each user's copies are handed to that user's {@link Outbound} queue, which keeps them in the order they were broadcast.
+ *
+ * The system property securechat.broadcastThreads sets the number of workers (defaults to the number of cores).
+ *
+ * @author David Arena
+ */
+public class Broadcaster {
+	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+	private static final ExecutorService workers = Executors.newFixedThreadPool(
+			Integer.getInteger("securechat.broadcastThreads", Runtime.getRuntime().availableProcessors()), new WorkerFactory());
+
+	/**
+	 * Sends a message to every recipient, encrypting each copy with that recipient's keys. Returns without waiting for any copy to be sent.
+	 *
+	 * @param recipients
+	 * @param data the plaintext message, which must not be modified afterwards
+	 * @param type
+	 */
+	public static void broadcastEncrypted(Iterable<SecureChatServer.User> recipients, byte[] data, TypeOfData type) {
+		broadcastEncrypted(recipients, new BufferPool.Shared(ByteBuffer.wrap(data)), type);
+	}
+
+	/**
+	 * Sends a message held in a shared buffer to every recipient, encrypting each copy with that recipient's keys. Every recipient
+	 * reads the same buffer, and it returns to its pool once the last copy has been encrypted.
+	 *
+	 * @param recipients
+	 * @param message the plaintext message, whose reference passes to this method
+	 * @param type
+	 */
+	public static void broadcastEncrypted(Iterable<SecureChatServer.User> recipients, BufferPool.Shared message, TypeOfData type) {
+		try {
+			for (SecureChatServer.User u : recipients) {
+				u.enqueue(message, type);
+			}
+		}
+		finally {
+			message.release();
+		}
+	}
+
+	/**
+	 * Sends a message to every recipient as is. Returns without waiting for any copy to be sent.
+	 *
+	 * @param recipients
+	 * @param data the message, which must not be modified afterwards
+	 * @param type
+	 */
+	public static void broadcast(Iterable<SecureChatServer.User> recipients, byte[] data, TypeOfData type) {
+		for (SecureChatServer.User u : recipients) {
+			u.enqueue(data, type, false);
+		}
+	}
+
+	/**
+	 * A queue of work, such as everything waiting to be sent to a single user or broadcast in a single room. Tasks run one at a time,
+	 * in order, on the shared workers; a long queue gives its worker up every so often so other queues are not starved.
+	 */
+	public static class Outbound implements Executor {
+		private static final int BATCH = 64;
+
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+
+		/**
+		 * Queues a task to run after every task already queued for this user.
+		 * @param task
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			schedule();
+		}
+
+		private void schedule() {
+			if (scheduled.compareAndSet(false, true))
+				workers.execute(this::drain);
+		}
+
+		private void drain() {
+			try {
+				Runnable task;
+				for (int i = 0; i < BATCH && (task = tasks.poll()) != null; i++) {
+					try {
+						task.run();
+					}
+					catch (RuntimeException e) {
+						logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " occurred while sending to a user: ", e);
+					}
+				}
+			}
+			finally {
+				scheduled.set(false);
+				if (!tasks.isEmpty())
+					schedule();
+			}
+		}
+	}
+
+	private static class WorkerFactory implements ThreadFactory {
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "SecureChatServer-broadcast-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,142 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct byte buffers, so that messages can be decrypted, encrypted and written without allocating memory for each one.
+ * Buffers come in powers of two from 256 bytes up to securechat.bufferPool.maxBuffer (128 KiB by default); a request is served by the
+ * smallest size that fits, and larger requests get a heap buffer that is left to the garbage collector. Released buffers are kept
+ * for reuse until the pool holds securechat.bufferPool.maxBytes (16 MiB by default), beyond which they are dropped.
+ *
+ * Direct buffers are written to sockets and passed to the OpenSSL cipher provider without being copied to and from the heap first.
+ *
+ * @author David Arena
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 8;
+	private static final int MAX_BUFFER = Integer.highestOneBit(Math.max(1 << MIN_SHIFT, Integer.getInteger("securechat.bufferPool.maxBuffer", 128 * 1024)));
+	private static final long MAX_BYTES = Long.getLong("securechat.bufferPool.maxBytes", 16L * 1024 * 1024);
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static final Queue<ByteBuffer>[] free = new Queue[Integer.numberOfTrailingZeros(MAX_BUFFER) - MIN_SHIFT + 1];
+	private static final AtomicLong pooledBytes = new AtomicLong();
+	private static final AtomicLong allocatedBytes = new AtomicLong();
+
+	static {
+		for (int i = 0; i < free.length; i++)
+			free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+	}
+
+	/**
+	 * Takes a buffer from the pool, or allocates one if none of the right size is free.
+	 * @param capacity the number of bytes needed
+	 * @return a cleared buffer with a limit of exactly capacity
+	 */
+	public static ByteBuffer acquire(int capacity) {
+		if (capacity > MAX_BUFFER)
+			return ByteBuffer.allocate(capacity);
+		int index = index(capacity);
+		ByteBuffer buffer = free[index].poll();
+		if (buffer != null)
+			pooledBytes.addAndGet(-buffer.capacity());
+		else {
+			buffer = ByteBuffer.allocateDirect(1 << (index + MIN_SHIFT));
+			allocatedBytes.addAndGet(buffer.capacity());
+		}
+		buffer.clear().limit(capacity);
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must have come from {@link #acquire(int)} and must not be used afterwards.
+	 * @param buffer
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (!buffer.isDirect())
+			return;
+		if (pooledBytes.addAndGet(buffer.capacity()) > MAX_BYTES) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			allocatedBytes.addAndGet(-buffer.capacity());
+			return;
+		}
+		free[index(buffer.capacity())].add(buffer);
+	}
+
+	/**
+	 * @return the number of bytes of direct memory the pool has allocated and not dropped, whether in use or free
+	 */
+	public static long allocatedBytes() {
+		return allocatedBytes.get();
+	}
+
+	/**
+	 * @return the number of bytes free in the pool
+	 */
+	public static long pooledBytes() {
+		return pooledBytes.get();
+	}
+
+	private static int index(int capacity) {
+		return Math.max(0, 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_SHIFT);
+	}
+
+	/**
+	 * A pooled buffer read by several users at once, such as a message being broadcast, which returns to the pool once every user
+	 * has released it. The creator holds the first reference, and every other holder takes one with {@link #retain()}.
+	 */
+	public static class Shared {
+		private final ByteBuffer buffer;
+		private final AtomicInteger references = new AtomicInteger(1);
+
+		/**
+		 * Takes a buffer of the given capacity from the pool, to be filled by its creator.
+		 * @param capacity
+		 */
+		public Shared(int capacity) {
+			this(acquire(capacity));
+		}
+
+		/**
+		 * Shares a buffer that did not come from the pool, such as a wrapped array.
+		 * @param buffer
+		 */
+		public Shared(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		/**
+		 * @return the buffer itself, for its creator to fill and flip before sharing it
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		/**
+		 * @return a view of the contents with its own position, so holders can read it independently
+		 */
+		public ByteBuffer contents() {
+			return buffer.duplicate();
+		}
+
+		/**
+		 * @return the length of the contents
+		 */
+		public int length() {
+			return buffer.remaining();
+		}
+
+		public void retain() {
+			references.incrementAndGet();
+		}
+
+		/**
+		 * Releases a reference, returning the buffer to the pool if it was the last.
+		 */
+		public void release() {
+			if (references.decrementAndGet() == 0)
+				BufferPool.release(buffer);
+		}
+	}
+}
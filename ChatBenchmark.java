@@ -0,0 +1,491 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks for the server's hot paths, so that changes to them can be checked for regressions and new engines compared with the
+ * current ones. Each benchmark runs in this JVM against the real classes:
+ *
+ * encrypt, decrypt: {@link SecureConnection} with 1 or more layered keys, for a range of message sizes.
+ * aead: a message sealed and opened in session mode, for the same sizes.
+ * handshake-server, handshake-full: a key exchange as done by the server alone, and by both ends once the parameters are known.
+ * parse: length-prefixed frames of each size decoded from the connection and handed to {@link SecureChatServer.User#process}, in 2 KiB reads.
+ * fanout: a message from one user decrypted, then encrypted and queued for every member of a room of 10 to 1000 users.
+ * compress, decompress: chat text of each size compressed by a {@link MessageCompressor}, and restored, reporting the bytes saved.
+ *
+ * Run with <code>java -cp commons-crypto-1.0.0.jar:. ChatBenchmark [name...]</code>, where each name selects the benchmarks whose
+ * names start with it (all of them by default). Every benchmark is warmed up for securechat.bench.warmup iterations (3 by default)
+ * and then measured for securechat.bench.iterations (5 by default), each iteration lasting securechat.bench.time milliseconds
+ * (1000 by default). The parameters are set by securechat.bench.keys (1,2,4), securechat.bench.sizes (16,256,4096,65536),
+ * securechat.bench.dhSizes (1024,2048) and securechat.bench.users (10,100,1000).
+ *
+ * securechat.bench.output writes the results as CSV. Given the CSV of an earlier run, securechat.bench.baseline reports the change in
+ * each result and exits with status 2 if any became slower by more than securechat.bench.threshold percent (10 by default).
+ * Settings that choose between engines, such as securechat.cipherProvider, are passed through to the classes being measured.
+ *
+ * @author David Arena
+ */
+public class ChatBenchmark {
+	private static final int WARMUP = Integer.getInteger("securechat.bench.warmup", 3);
+	private static final int ITERATIONS = Integer.getInteger("securechat.bench.iterations", 5);
+	private static final long ITERATION_TIME = TimeUnit.MILLISECONDS.toNanos(Long.getLong("securechat.bench.time", 1000));
+	private static final int[] KEYS = sizes("securechat.bench.keys", "1,2,4");
+	private static final int[] SIZES = sizes("securechat.bench.sizes", "16,256,4096,65536");
+	private static final int[] DH_SIZES = sizes("securechat.bench.dhSizes", "1024,2048");
+	private static final int[] USERS = sizes("securechat.bench.users", "10,100,1000");
+	private static final int FANOUT_SIZE = 256;
+	private static final int READ_SIZE = 2048;
+
+	//Held so the quieter level set on the server's logger is not lost if the logger is garbage collected
+	private static final Logger serverLogger = Logger.getLogger(SecureChatServer.class.getName());
+
+	//Results are added here so the work that produced them cannot be optimized away
+	private static long sink;
+
+	/**
+	 * A single benchmark, set up and ready to run. Each call to {@link #run()} is one operation, or {@link #operations()} of them.
+	 */
+	private static abstract class Benchmark implements AutoCloseable {
+		abstract void run() throws Exception;
+
+		int operations() {
+			return 1;
+		}
+
+		/**
+		 * @return anything measured besides time, to be reported after it, or null
+		 */
+		String detail() {
+			return null;
+		}
+
+		public void close() {
+		}
+	}
+
+	private interface Factory {
+		Benchmark create() throws Exception;
+	}
+
+	private static class Result {
+		final String name;
+		final double nanos;
+		final double error;
+		final String detail;
+
+		Result(String name, double nanos, double error, String detail) {
+			this.name = name;
+			this.nanos = nanos;
+			this.error = error;
+			this.detail = detail;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		//The legacy format cannot carry more than one message per read, so frames are parsed in the length-prefixed format
+		if (System.getProperty("securechat.framing") == null)
+			System.setProperty("securechat.framing", "length");
+		//Benchmarks send far faster than any user is allowed to, so rate limits are off unless asked for
+		if (System.getProperty("securechat.limit") == null)
+			System.setProperty("securechat.limit", "false");
+		serverLogger.setLevel(Level.WARNING);
+		Map<String, Factory> benchmarks = register();
+		Map<String, Double> baseline = System.getProperty("securechat.bench.baseline") == null ? null
+				: readBaseline(System.getProperty("securechat.bench.baseline"));
+		double threshold = Double.parseDouble(System.getProperty("securechat.bench.threshold", "10"));
+
+		System.out.println("Java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors() + " cores, cipher provider "
+				+ SecureConnection.getCipherProvider() + ", " + WARMUP + " warmup and " + ITERATIONS + " measured iterations of "
+				+ TimeUnit.NANOSECONDS.toMillis(ITERATION_TIME) + " ms");
+		List<Result> results = new ArrayList<Result>();
+		int regressions = 0;
+		for (Map.Entry<String, Factory> entry : benchmarks.entrySet()) {
+			if (!selected(entry.getKey(), args))
+				continue;
+			Result result = measure(entry.getKey(), entry.getValue());
+			results.add(result);
+			String line = String.format(Locale.ROOT, "%-36s %14.1f +- %10.1f ns/op %14.0f ops/s", result.name, result.nanos, result.error, 1e9 / result.nanos);
+			Double previous = baseline == null ? null : baseline.get(result.name);
+			if (previous != null) {
+				double change = (result.nanos - previous) / previous * 100;
+				line += String.format(Locale.ROOT, "   %+7.1f%%", change);
+				if (change > threshold) {
+					line += " REGRESSION";
+					regressions++;
+				}
+			}
+			if (result.detail != null)
+				line += "   " + result.detail;
+			System.out.println(line);
+		}
+
+		String output = System.getProperty("securechat.bench.output");
+		if (output != null) {
+			try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))) {
+				writer.println("benchmark,ns_per_op,error,ops_per_s");
+				for (Result result : results)
+					writer.println(String.format(Locale.ROOT, "%s,%.3f,%.3f,%.1f", result.name, result.nanos, result.error, 1e9 / result.nanos));
+			}
+		}
+		if (sink == 42)
+			System.out.println();
+		System.exit(regressions > 0 ? 2 : 0);
+	}
+
+	private static Map<String, Factory> register() {
+		Map<String, Factory> benchmarks = new LinkedHashMap<String, Factory>();
+		for (int keys : KEYS) {
+			for (int size : SIZES) {
+				benchmarks.put("encrypt keys=" + keys + " size=" + size, () -> new Benchmark() {
+					final SecureConnection[] pair = connect(keys);
+					final byte[] message = random(size);
+
+					void run() throws Exception {
+						sink += pair[0].encrypt(message).length;
+					}
+
+					public void close() {
+						closeAll(pair);
+					}
+				});
+				benchmarks.put("decrypt keys=" + keys + " size=" + size, () -> new Benchmark() {
+					final SecureConnection[] pair = connect(keys);
+					final byte[] message = pair[1].encrypt(random(size));
+
+					void run() throws Exception {
+						sink += pair[0].decrypt(message).length;
+					}
+
+					public void close() {
+						closeAll(pair);
+					}
+				});
+			}
+		}
+		for (int size : SIZES) {
+			benchmarks.put("aead size=" + size, () -> new Benchmark() {
+				final SecureConnection[] pair = connect(1);
+				final byte[] message = random(size);
+
+				{
+					pair[0].enableSessionMode(true);
+					pair[1].enableSessionMode(false);
+				}
+
+				void run() throws Exception {
+					sink += pair[1].decrypt(pair[0].encrypt(message)).length;
+				}
+
+				public void close() {
+					closeAll(pair);
+				}
+			});
+		}
+		for (int bits : DH_SIZES) {
+			benchmarks.put("handshake-server bits=" + bits, () -> new Benchmark() {
+				final byte[] clientKey = new SecureConnection().getPublicKey(bits);
+
+				void run() throws Exception {
+					SecureConnection server = new SecureConnection();
+					sink += server.getPublicKey(clientKey).length;
+					server.processOtherPubKey(clientKey);
+					server.close();
+				}
+			});
+			benchmarks.put("handshake-full bits=" + bits, () -> new Benchmark() {
+				final byte[] parameters = new SecureConnection().getPublicKey(bits);
+
+				void run() throws Exception {
+					SecureConnection server = new SecureConnection(), client = new SecureConnection();
+					byte[] clientKey = client.getPublicKey(parameters);
+					byte[] serverKey = server.getPublicKey(clientKey);
+					client.processOtherPubKey(serverKey);
+					server.processOtherPubKey(clientKey);
+					closeAll(new SecureConnection[] {server, client});
+				}
+			});
+		}
+		for (int size : SIZES) {
+			benchmarks.put("parse size=" + size, () -> new ParseBenchmark(size));
+		}
+		for (int users : USERS) {
+			benchmarks.put("fanout users=" + users, () -> new FanoutBenchmark(users));
+		}
+		for (int size : SIZES) {
+			benchmarks.put("compress size=" + size, () -> new Benchmark() {
+				final MessageCompressor compressor = new MessageCompressor(Integer.MAX_VALUE);
+				final ByteBuffer text = ByteBuffer.wrap(chatText(size));
+
+				void run() {
+					sink += compressor.compress(text).remaining();
+				}
+
+				String detail() {
+					return saved(text.remaining(), compressor.compress(text).remaining());
+				}
+
+				public void close() {
+					compressor.close();
+				}
+			});
+			benchmarks.put("decompress size=" + size, () -> new Benchmark() {
+				final MessageCompressor compressor = new MessageCompressor(Integer.MAX_VALUE);
+				final ByteBuffer message = copy(compressor.compress(ByteBuffer.wrap(chatText(size))));
+
+				void run() throws Exception {
+					sink += compressor.decompress(message).remaining();
+				}
+
+				String detail() {
+					return saved(size, message.remaining());
+				}
+
+				public void close() {
+					compressor.close();
+				}
+			});
+		}
+		return benchmarks;
+	}
+
+	private static boolean selected(String name, String[] filters) {
+		if (filters.length == 0)
+			return true;
+		for (String filter : filters) {
+			if (name.startsWith(filter))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a benchmark for its warmup and measured iterations, in batches long enough that reading the clock costs little.
+	 */
+	private static Result measure(String name, Factory factory) throws Exception {
+		try (Benchmark benchmark = factory.create()) {
+			double[] samples = new double[ITERATIONS];
+			int batch = 1;
+			for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+				long operations = 0;
+				long start = System.nanoTime();
+				long elapsed;
+				do {
+					long batchStart = System.nanoTime();
+					for (int i = 0; i < batch; i++)
+						benchmark.run();
+					operations += (long) batch * benchmark.operations();
+					long now = System.nanoTime();
+					if (now - batchStart < TimeUnit.MICROSECONDS.toNanos(100) && batch < 1 << 20)
+						batch <<= 1;
+					elapsed = now - start;
+				} while (elapsed < ITERATION_TIME);
+				if (iteration >= 0)
+					samples[iteration] = (double) elapsed / operations;
+			}
+
+			double mean = 0;
+			for (double sample : samples)
+				mean += sample / samples.length;
+			double variance = 0;
+			for (double sample : samples)
+				variance += (sample - mean) * (sample - mean);
+			double error = samples.length > 1 ? Math.sqrt(variance / (samples.length - 1)) : 0;
+			return new Result(name, mean, error, benchmark.detail());
+		}
+	}
+
+	private static Map<String, Double> readBaseline(String path) throws IOException {
+		Map<String, Double> baseline = new HashMap<String, Double>();
+		for (String line : Files.readAllLines(Paths.get(path), StandardCharsets.UTF_8)) {
+			String[] fields = line.split(",");
+			if (fields.length >= 2 && !"benchmark".equals(fields[0]))
+				baseline.put(fields[0], Double.parseDouble(fields[1]));
+		}
+		return baseline;
+	}
+
+	/**
+	 * Decodes a stream of MESSAGE frames of one size the way a user's handler does, reading 2 KiB at a time into the decoder.
+	 * Each run decodes the whole stream, and each frame counts as one operation.
+	 */
+	private static class ParseBenchmark extends Benchmark {
+		private final byte[] stream;
+		private final int frames;
+		private final FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+		private final SecureChatServer.User user = new SecureChatServer.User() {
+			@Override
+			protected void process(TypeOfData type, byte[] data) {
+				sink += data.length;
+			}
+
+			@Override
+			protected void receiveMessage(ByteBuffer encrypted) {
+				sink += encrypted.remaining();
+			}
+		};
+
+		ParseBenchmark(int size) {
+			ByteBuffer frame = FrameCodec.frame(TypeOfData.MESSAGE, random(size));
+			frames = Math.max(1, (64 * 1024) / frame.remaining());
+			stream = new byte[frame.remaining() * frames];
+			for (int i = 0; i < frames; i++)
+				frame.duplicate().get(stream, i * frame.remaining(), frame.remaining());
+		}
+
+		void run() throws Exception {
+			for (int offset = 0; offset < stream.length;) {
+				ByteBuffer buffer = decoder.buffer();
+				int read = Math.min(Math.min(READ_SIZE, buffer.remaining()), stream.length - offset);
+				buffer.put(stream, offset, read);
+				offset += read;
+				user.processFrames(decoder);
+			}
+		}
+
+		int operations() {
+			return frames;
+		}
+	}
+
+	/**
+	 * Sends a message from one member of a room and waits until every member's encrypted copy has been queued on their connection.
+	 * The members are real users whose connections only count what is written to them.
+	 */
+	private static class FanoutBenchmark extends Benchmark {
+		private final AtomicLong delivered = new AtomicLong();
+		private volatile long target;
+		private volatile Thread waiter;
+		private final BenchUser[] members;
+		private final byte[] message;
+
+		private class BenchUser extends SecureChatServer.User {
+			volatile byte[] publicKey;
+
+			@Override
+			protected void queue(ByteBuffer[] frame, TypeOfData type, boolean pooled) {
+				ByteBuffer payload = frame[frame.length - 1];
+				if (type == TypeOfData.DH_PUB_KEY) {
+					publicKey = new byte[payload.remaining()];
+					payload.duplicate().get(publicKey);
+				}
+				if (pooled)
+					BufferPool.release(payload);
+				if (type == TypeOfData.MESSAGE && delivered.incrementAndGet() == target)
+					LockSupport.unpark(waiter);
+			}
+
+			@Override
+			protected void close() {
+			}
+		}
+
+		FanoutBenchmark(int size) throws Exception {
+			SecureConnection client = new SecureConnection();
+			byte[] clientKey = client.getPublicKey(2048);
+			byte[] room = ("bench-" + size).getBytes(StandardCharsets.UTF_8);
+			members = new BenchUser[size];
+			for (int i = 0; i < size; i++) {
+				members[i] = new BenchUser();
+				members[i].onConnect();
+				members[i].process(TypeOfData.NICKNAME, ("bench-" + size + "-" + i).getBytes(StandardCharsets.UTF_8));
+				members[i].process(TypeOfData.JOIN_ROOM, room);
+				members[i].process(TypeOfData.DH_PUB_KEY, clientKey);
+			}
+			client.processOtherPubKey(members[0].publicKey);
+			message = client.encrypt(random(FANOUT_SIZE));
+			client.close();
+			//Let the join notices finish before measuring
+			Thread.sleep(500);
+		}
+
+		void run() throws Exception {
+			waiter = Thread.currentThread();
+			target = delivered.get() + members.length;
+			members[0].process(TypeOfData.MESSAGE, message);
+			while (delivered.get() < target)
+				LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(1));
+		}
+
+		public void close() {
+			for (BenchUser member : members)
+				member.disconnect();
+		}
+	}
+
+	/**
+	 * Creates two connections that have agreed on the given number of keys, as a user and the server would.
+	 */
+	private static SecureConnection[] connect(int keys) throws Exception {
+		SecureConnection server = new SecureConnection(), client = new SecureConnection();
+		for (int i = 0; i < keys; i++) {
+			byte[] clientKey = client.getPublicKey(2048);
+			client.processOtherPubKey(server.getPublicKey(clientKey));
+			server.processOtherPubKey(clientKey);
+		}
+		return new SecureConnection[] {server, client};
+	}
+
+	private static void closeAll(SecureConnection[] connections) {
+		for (SecureConnection connection : connections)
+			connection.close();
+	}
+
+	private static byte[] random(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Builds text of the given length out of a mix of everyday words, some of them in the compressor's dictionary and some not,
+	 * with the occasional number, so that it compresses about as well as a chat room's messages.
+	 */
+	private static byte[] chatText(int size) {
+		String[] words = ("the you to and that it is of in have for not on with this what are do was but just so can like know get "
+				+ "if at my your all they about out we no there yes one up think how good now going would lol thanks okay hey hi "
+				+ "meeting deploy server branch release coffee lunch build review merge ticket weather train music game later").split(" ");
+		Random random = new Random(size);
+		StringBuilder text = new StringBuilder();
+		while (text.length() < size) {
+			if (random.nextInt(12) == 0)
+				text.append(random.nextInt(1000));
+			else text.append(words[random.nextInt(words.length)]);
+			text.append(random.nextInt(10) == 0 ? ". " : " ");
+		}
+		return Arrays.copyOf(text.toString().getBytes(StandardCharsets.UTF_8), size);
+	}
+
+	private static ByteBuffer copy(ByteBuffer buffer) {
+		ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+		copy.put(buffer.duplicate()).flip();
+		return copy;
+	}
+
+	private static String saved(int length, int compressed) {
+		return String.format(Locale.ROOT, "%d -> %d bytes, %.1f%% saved", length, compressed, 100.0 * (length - compressed) / length);
+	}
+
+	private static int[] sizes(String property, String defaults) {
+		String[] values = System.getProperty(property, defaults).split(",");
+		int[] sizes = new int[values.length];
+		for (int i = 0; i < values.length; i++)
+			sizes[i] = Integer.parseInt(values[i].trim());
+		return sizes;
+	}
+}
@@ -0,0 +1,148 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A named group of users that messages are broadcast within. Each user is in exactly one room at a time; everyone starts in the
+ * {@link #LOBBY}, which always exists, and other rooms are created when their first user joins and removed when their last user leaves.
+ *
+ * Every room fans its messages out on its own {@link Broadcaster.Outbound}, so a message costs work proportional to the size of its
+ * room, and a busy room's broadcasts queue behind each other instead of occupying every broadcast worker while quiet rooms wait.
+ *
+ * @author David Arena
+ */
+public class ChatRoom {
+	/**
+	 * The name of the room every user is in until they join another.
+	 */
+	public static final String LOBBY = "lobby";
+
+	private static final Pattern VALID_NAME = Pattern.compile("[^,:\\p{Cntrl}]{1,64}");
+	private static final ConcurrentHashMap<String, ChatRoom> rooms = new ConcurrentHashMap<String, ChatRoom>();
+
+	private final String name;
+	private final UserRegistry members = new UserRegistry();
+	private final Broadcaster.Outbound fanout = new Broadcaster.Outbound();
+
+	private ChatRoom(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * A helper method to verify that a room name is between 1 and 64 characters and has no commas, colons or control characters.
+	 * @param name
+	 */
+	public static boolean verifyName(String name) {
+		return VALID_NAME.matcher(name).matches();
+	}
+
+	/**
+	 * Adds a user to a room, creating the room if it does not exist.
+	 * @param name
+	 * @param user
+	 * @return the room
+	 */
+	public static ChatRoom join(String name, SecureChatServer.User user) {
+		return rooms.compute(name, (key, room) -> {
+			if (room == null)
+				room = new ChatRoom(key);
+			room.members.add(user);
+			return room;
+		});
+	}
+
+	/**
+	 * @param name
+	 * @return the room with the given name, or null if no one is in it
+	 */
+	public static ChatRoom find(String name) {
+		return rooms.get(name);
+	}
+
+	/**
+	 * Removes a user from a room, removing the room as well if it is left empty (unless it is the lobby).
+	 * @param room
+	 * @param user
+	 */
+	public static void leave(ChatRoom room, SecureChatServer.User user) {
+		rooms.computeIfPresent(room.name, (key, current) -> {
+			if (current != room)
+				return current;
+			current.members.remove(user);
+			return current.members.size() == 0 && !LOBBY.equals(key) ? null : current;
+		});
+	}
+
+	/**
+	 * Lists the rooms that currently have users in them, as "name:members" pairs separated by commas.
+	 * @return the list of rooms
+	 */
+	public static String list() {
+		StringBuilder list = new StringBuilder();
+		for (ChatRoom room : rooms.values()) {
+			int size = room.members.size();
+			if (size == 0)
+				continue;
+			if (list.length() > 0)
+				list.append(',');
+			list.append(room.name).append(':').append(size);
+		}
+		return list.toString();
+	}
+
+	/**
+	 * Sends a message to every member of the room, encrypting each copy with that member's keys.
+	 * @param data the plaintext message, which must not be modified afterwards
+	 * @param type
+	 */
+	public void broadcastEncrypted(byte[] data, TypeOfData type) {
+		broadcastEncrypted(new BufferPool.Shared(ByteBuffer.wrap(data)), type);
+	}
+
+	/**
+	 * Sends a message held in a shared buffer to every member of the room, encrypting each copy with that member's keys.
+	 * @param message the plaintext message, whose reference passes to this method
+	 * @param type
+	 */
+	public void broadcastEncrypted(BufferPool.Shared message, TypeOfData type) {
+		long start = ServerMetrics.now();
+		fanout.execute(() -> {
+			Broadcaster.broadcastEncrypted(members, message, type);
+			ServerMetrics.fannedOut(start);
+		});
+	}
+
+	/**
+	 * Sends a message to every member of the room as is.
+	 * @param data the message, which must not be modified afterwards
+	 * @param type
+	 */
+	public void broadcast(byte[] data, TypeOfData type) {
+		long start = ServerMetrics.now();
+		fanout.execute(() -> {
+			Broadcaster.broadcast(members, data, type);
+			ServerMetrics.fannedOut(start);
+		});
+	}
+
+	/**
+	 * @return the name of the room
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return true if this is the lobby
+	 */
+	public boolean isLobby() {
+		return LOBBY.equals(name);
+	}
+
+	/**
+	 * @return the number of users in the room
+	 */
+	public int size() {
+		return members.size();
+	}
+}
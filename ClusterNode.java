@@ -0,0 +1,596 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Joins several servers into a cluster, so that users connected to different servers can talk to each other.
+ *
+ * Every node dials every other node and sends its relay traffic over that link; it receives the other nodes' traffic on the links they
+ * dial to it. Chat messages are relayed in plaintext inside the link, and each receiving node encrypts them again for its own users, so
+ * no node needs another's user keys. Server and room notices are relayed the same way.
+ *
+ * When securechat.cluster.secret is set, a cluster key is derived from it with PBKDF2, which also keeps nodes without the secret out of
+ * the cluster. Each link then has its own key, derived from the cluster key and a random challenge the receiving node sends when the
+ * link connects, and every batch on the link is sealed with AES-GCM under that key with a counter as its nonce. The receiving node
+ * refuses any batch whose counter is not above the last one's, so batches captured from a link cannot be replayed on it or on any
+ * other. Without a secret, relay traffic is neither encrypted nor authenticated, so the node only accepts other nodes on the loopback
+ * interface and refuses to start if any of its peers is on another host.
+ *
+ * Nicknames stay unique across the cluster: each nickname is owned by one node, chosen by its hash, which grants it to at most one node
+ * at a time. A node that cannot reach a nickname's owner refuses the nickname. When a node's link drops, its owners forget what it held,
+ * and when it comes back it claims its users' nicknames again.
+ *
+ * Relay traffic is batched: each link's writer sends everything queued since its last write as one frame. Traffic for a node that is not
+ * connected is dropped rather than held back.
+ *
+ * Configured by the system properties securechat.cluster.node (this node's id), securechat.cluster.port (the port to accept other nodes on),
+ * securechat.cluster.peers (the other nodes, as id@host:port separated by commas) and securechat.cluster.secret. Every node must be given
+ * the same set of ids.
+ *
+ * @author David Arena
+ */
+public class ClusterNode {
+	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+
+	private static final int MAGIC = 0x53434332;
+	private static final int MAX_BATCH = 256 * 1024;
+	private static final int QUEUE_LIMIT = 16384;
+	private static final int CHALLENGE_LENGTH = 16;
+	private static final int COUNTER_LENGTH = 8;
+	private static final int TAG_LENGTH = 16;
+	private static final int PBKDF2_ITERATIONS = 210000;
+	private static final byte[] KEY_SALT = "SecureChatServer cluster".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] LINK_LABEL = "SecureChatServer cluster link".getBytes(StandardCharsets.US_ASCII);
+	private static final long RESERVE_TIMEOUT = Long.getLong("securechat.cluster.reserveTimeout", 2000);
+
+	//Kinds of relay record
+	private static final byte HELLO = 0;
+	private static final byte CHAT = 1;
+	private static final byte NOTICE = 2;
+	private static final byte RESERVE = 3;
+	private static final byte RESERVED = 4;
+	private static final byte RELEASE = 5;
+	private static final byte CLAIM = 6;
+
+	private final String id;
+	private final List<String> nodes;
+	private final Map<String, Peer> peers = new LinkedHashMap<String, Peer>();
+	private final UserRegistry users;
+	private final MessageJournal journal;
+	private final SecretKeySpec key;
+	private final SecureRandom random = new SecureRandom();
+
+	//Nicknames this node owns, and the node each is granted to
+	private final ConcurrentHashMap<String, String> reservations = new ConcurrentHashMap<String, String>();
+	private final ConcurrentHashMap<Long, CompletableFuture<Boolean>> pending = new ConcurrentHashMap<Long, CompletableFuture<Boolean>>();
+	private final AtomicLong requestIds = new AtomicLong();
+	//The link each node is currently sending to this node on
+	private final ConcurrentHashMap<String, Object> inbound = new ConcurrentHashMap<String, Object>();
+
+	private ClusterNode(String id, Map<String, InetSocketAddress> peerAddresses, UserRegistry users, MessageJournal journal, SecretKeySpec key) {
+		this.id = id;
+		this.users = users;
+		this.journal = journal;
+		this.key = key;
+		List<String> ids = new ArrayList<String>(peerAddresses.keySet());
+		ids.add(id);
+		Collections.sort(ids);
+		this.nodes = Collections.unmodifiableList(ids);
+		for (Map.Entry<String, InetSocketAddress> peer : peerAddresses.entrySet())
+			peers.put(peer.getKey(), new Peer(peer.getKey(), peer.getValue()));
+	}
+
+	/**
+	 * Starts a cluster node configured by system properties, or does nothing if securechat.cluster.peers is not set.
+	 *
+	 * @param users the users connected to this node
+	 * @param journal the journal to add relayed lobby messages to, or null
+	 * @return the node, or null if clustering is not configured
+	 * @throws IOException if the cluster port cannot be opened
+	 */
+	public static ClusterNode start(UserRegistry users, MessageJournal journal) throws IOException {
+		String peerList = System.getProperty("securechat.cluster.peers");
+		if (peerList == null || peerList.trim().isEmpty())
+			return null;
+		String id = System.getProperty("securechat.cluster.node");
+		if (id == null || id.isEmpty())
+			throw new IllegalArgumentException("securechat.cluster.node must be set when securechat.cluster.peers is.");
+
+		Map<String, InetSocketAddress> peerAddresses = new LinkedHashMap<String, InetSocketAddress>();
+		for (String peer : peerList.split(",")) {
+			peer = peer.trim();
+			int at = peer.indexOf('@');
+			int colon = peer.lastIndexOf(':');
+			if (at <= 0 || colon < at)
+				throw new IllegalArgumentException("Malformed cluster peer " + peer + ", expected id@host:port.");
+			if (!peer.substring(0, at).equals(id))
+				peerAddresses.put(peer.substring(0, at), new InetSocketAddress(peer.substring(at + 1, colon), Integer.parseInt(peer.substring(colon + 1))));
+		}
+
+		String secret = System.getProperty("securechat.cluster.secret");
+		if (secret == null) {
+			for (Map.Entry<String, InetSocketAddress> peer : peerAddresses.entrySet()) {
+				InetAddress address = peer.getValue().getAddress();
+				if (address == null || !address.isLoopbackAddress())
+					throw new IllegalArgumentException("securechat.cluster.secret must be set, as cluster node " + peer.getKey() + " is on another host.");
+			}
+			logger.warning("securechat.cluster.secret is not set, so relay traffic between nodes is not encrypted, and only nodes on this host can join.");
+		}
+		ClusterNode node = new ClusterNode(id, peerAddresses, users, journal, secret != null ? deriveKey(secret) : null);
+
+		int port = Integer.getInteger("securechat.cluster.port", 0);
+		ServerSocket listener = secret != null ? new ServerSocket(port) : new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(() -> node.accept(listener), "SecureChatServer-cluster-accept");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		for (Peer peer : node.peers.values()) {
+			Thread thread = new Thread(peer, "SecureChatServer-cluster-" + peer.id);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		logger.info("Cluster node " + id + " listening on port " + listener.getLocalPort() + " with peers " + node.peers.keySet() + ".");
+		return node;
+	}
+
+	//Stretches the secret, which is typically a passphrase, so that guessing it from captured traffic costs as much as possible
+	private static SecretKeySpec deriveKey(String secret) {
+		try {
+			SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+			byte[] key = factory.generateSecret(new PBEKeySpec(secret.toCharArray(), KEY_SALT, PBKDF2_ITERATIONS, 256)).getEncoded();
+			return new SecretKeySpec(key, "HmacSHA256");
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException("PBKDF2 is not available.", e);
+		}
+	}
+
+	//The key for a single link, from the cluster key and the challenge the receiving node sent (HKDF-Expand with the challenge as info)
+	private SecretKeySpec linkKey(byte[] challenge) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		mac.init(key);
+		mac.update(LINK_LABEL);
+		mac.update(challenge);
+		mac.update((byte) 1);
+		return new SecretKeySpec(Arrays.copyOf(mac.doFinal(), 16), "AES");
+	}
+
+	//Batches are numbered from 1 on each link, and the number is the nonce, which is never reused as each link has its own key
+	private static GCMParameterSpec nonce(long counter) {
+		return new GCMParameterSpec(TAG_LENGTH * 8, ByteBuffer.allocate(12).putLong(4, counter).array());
+	}
+
+	/*
+	 * Nicknames
+	 */
+	/**
+	 * Reserves a nickname across the cluster, asking the node that owns it if that is another node. The answer is not waited for:
+	 * the reservation completes when the owner's answer arrives, or is refused once securechat.cluster.reserveTimeout (2 seconds
+	 * by default) passes without one, so callers on an event loop are never held up by a slow node.
+	 *
+	 * @param nickname
+	 * @return completes with true if no user on any node holds the nickname, and it is now reserved for this node. It completes on
+	 * the thread that read the answer, or the one that timed it out, unless it already has when returned.
+	 */
+	public CompletableFuture<Boolean> reserve(String nickname) {
+		String owner = owner(nickname);
+		if (owner.equals(id))
+			return CompletableFuture.completedFuture(reservations.putIfAbsent(nickname, id) == null);
+		Peer peer = peers.get(owner);
+		if (!peer.connected)
+			return CompletableFuture.completedFuture(false);
+
+		long request = requestIds.incrementAndGet();
+		CompletableFuture<Boolean> reply = new CompletableFuture<Boolean>();
+		pending.put(request, reply);
+		peer.send(record(RESERVE, out -> {
+			out.writeLong(request);
+			out.writeUTF(nickname);
+		}));
+		CompletableFuture.delayedExecutor(RESERVE_TIMEOUT, TimeUnit.MILLISECONDS).execute(() -> {
+			//Whichever of the answer and the timeout removes the request decides it
+			if (pending.remove(request) != null) {
+				logger.warning("Cluster node " + owner + " did not answer a nickname reservation in time.");
+				//The owner may still grant it, and reads this after the RESERVE, so a late grant is not left held
+				peer.send(record(RELEASE, out -> out.writeUTF(nickname)));
+				reply.complete(false);
+			}
+		});
+		return reply;
+	}
+
+	/**
+	 * Releases a nickname this node reserved.
+	 * @param nickname
+	 */
+	public void release(String nickname) {
+		String owner = owner(nickname);
+		if (owner.equals(id))
+			reservations.remove(nickname, id);
+		else peers.get(owner).send(record(RELEASE, out -> out.writeUTF(nickname)));
+	}
+
+	private String owner(String nickname) {
+		return nodes.get(Math.floorMod(nickname.hashCode(), nodes.size()));
+	}
+
+	/*
+	 * Relaying
+	 */
+	/**
+	 * Relays a chat message to the members of a room on every other node.
+	 *
+	 * @param room
+	 * @param sender
+	 * @param text the UTF-8 text of the message
+	 */
+	public void relayChat(String room, String sender, byte[] text) {
+		broadcast(record(CHAT, out -> {
+			out.writeUTF(room);
+			out.writeUTF(sender);
+			out.writeInt(text.length);
+			out.write(text);
+		}));
+	}
+
+	/**
+	 * Relays an unencrypted notice to every other node.
+	 *
+	 * @param room the room whose members should receive it, or null for every user
+	 * @param type
+	 * @param data
+	 */
+	public void relayNotice(String room, TypeOfData type, byte[] data) {
+		broadcast(record(NOTICE, out -> {
+			out.writeUTF(room != null ? room : "");
+			out.writeByte(type.ordinal());
+			out.writeInt(data.length);
+			out.write(data);
+		}));
+	}
+
+	private void broadcast(byte[] record) {
+		if (record == null)
+			return;
+		for (Peer peer : peers.values())
+			peer.send(record);
+	}
+
+	/**
+	 * @return this node's id and the state of its links
+	 */
+	public String describe() {
+		StringBuilder description = new StringBuilder(id).append(" (");
+		for (Peer peer : peers.values())
+			description.append(peer.id).append(peer.connected ? " up" : " down").append(", ");
+		return description.append(reservations.size()).append(" nicknames owned)").toString();
+	}
+
+	/*
+	 * Records
+	 */
+	private interface RecordWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private static byte[] record(byte kind, RecordWriter writer) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(kind);
+			writer.write(out);
+		}
+		catch (IOException e) {
+			//Only a string too long for writeUTF gets here
+			logger.log(Level.WARNING, "A record could not be relayed to the cluster: ", e);
+			return null;
+		}
+		return bytes.toByteArray();
+	}
+
+	private void handle(String from, DataInputStream in) throws IOException {
+		byte kind = in.readByte();
+		switch (kind) {
+			case CHAT: {
+				String room = in.readUTF();
+				String sender = in.readUTF();
+				byte[] text = new byte[in.readInt()];
+				in.readFully(text);
+				ChatRoom local = ChatRoom.find(room);
+				if (local != null) {
+					byte[] sep = (sender + ',').getBytes(StandardCharsets.UTF_8);
+					byte[] message = Arrays.copyOf(sep, sep.length + text.length);
+					System.arraycopy(text, 0, message, sep.length, text.length);
+					local.broadcastEncrypted(message, TypeOfData.MESSAGE);
+				}
+				if (journal != null && ChatRoom.LOBBY.equals(room))
+					journal.tryAppend(sender, text);
+				break;
+			}
+			case NOTICE: {
+				String room = in.readUTF();
+				TypeOfData type = FrameCodec.toType(in.readUnsignedByte());
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if (room.isEmpty())
+					Broadcaster.broadcast(users, data, type);
+				else {
+					ChatRoom local = ChatRoom.find(room);
+					if (local != null)
+						local.broadcast(data, type);
+				}
+				break;
+			}
+			case RESERVE: {
+				long request = in.readLong();
+				String nickname = in.readUTF();
+				boolean granted = !users.isTaken(nickname) && reservations.putIfAbsent(nickname, from) == null;
+				Peer peer = peers.get(from);
+				if (peer != null)
+					peer.send(record(RESERVED, out -> {
+						out.writeLong(request);
+						out.writeBoolean(granted);
+					}));
+				break;
+			}
+			case RESERVED: {
+				CompletableFuture<Boolean> reply = pending.remove(in.readLong());
+				boolean granted = in.readBoolean();
+				if (reply != null)
+					reply.complete(granted);
+				break;
+			}
+			case RELEASE:
+				reservations.remove(in.readUTF(), from);
+				break;
+			case CLAIM: {
+				String nickname = in.readUTF();
+				String holder = reservations.putIfAbsent(nickname, from);
+				if (holder != null && !holder.equals(from))
+					logger.warning("Nodes " + holder + " and " + from + " both hold the nickname " + nickname + " after a partition.");
+				break;
+			}
+			default:
+				throw new IOException("Unknown relay record " + kind + " from cluster node " + from + ".");
+		}
+	}
+
+	/*
+	 * Links
+	 */
+	private void accept(ServerSocket listener) {
+		while (true) {
+			try {
+				Socket socket = listener.accept();
+				socket.setTcpNoDelay(true);
+				Thread reader = new Thread(() -> receive(socket), "SecureChatServer-cluster-in");
+				reader.setDaemon(true);
+				reader.start();
+			}
+			catch (IOException e) {
+				logger.log(Level.SEVERE, "The cluster listener failed: ", e);
+				return;
+			}
+		}
+	}
+
+	//Reads the batches another node sends on its link to this node
+	private void receive(Socket socket) {
+		Object link = new Object();
+		String from = null;
+		try {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			if (in.readInt() != MAGIC)
+				throw new IOException("A connection to the cluster port did not come from a cluster node.");
+			byte[] challenge = new byte[CHALLENGE_LENGTH];
+			random.nextBytes(challenge);
+			OutputStream out = socket.getOutputStream();
+			out.write(challenge);
+			out.flush();
+			SecretKeySpec linkKey = key != null ? linkKey(challenge) : null;
+			Cipher cipher = key != null ? Cipher.getInstance("AES/GCM/NoPadding") : null;
+			long last = 0;
+			while (true) {
+				int length = in.readInt();
+				if (length == 0)
+					continue;
+				if (length < COUNTER_LENGTH || length > COUNTER_LENGTH + MAX_BATCH + TAG_LENGTH)
+					throw new IOException("Relay batch of length " + length + " is out of range.");
+				byte[] batch = new byte[length];
+				in.readFully(batch);
+				long counter = ByteBuffer.wrap(batch).getLong();
+				if (cipher != null) {
+					cipher.init(Cipher.DECRYPT_MODE, linkKey, nonce(counter));
+					cipher.updateAAD(batch, 0, COUNTER_LENGTH);
+					batch = cipher.doFinal(batch, COUNTER_LENGTH, batch.length - COUNTER_LENGTH);
+				}
+				else batch = Arrays.copyOfRange(batch, COUNTER_LENGTH, batch.length);
+				if (counter <= last)
+					throw new IOException("Relay batch " + counter + " arrived after batch " + last + ", so it was replayed.");
+				last = counter;
+				DataInputStream records = new DataInputStream(new ByteArrayInputStream(batch));
+				if (from == null) {
+					if (records.readByte() != HELLO)
+						throw new IOException("A cluster node did not introduce itself.");
+					from = records.readUTF();
+					if (!peers.containsKey(from))
+						throw new IOException("Unknown cluster node " + from + ".");
+					//A new link from a node means it restarted or reconnected, so it no longer holds what it held before
+					if (inbound.put(from, link) != null)
+						forget(from);
+					logger.info("Cluster node " + from + " connected.");
+				}
+				while (records.available() > 0)
+					handle(from, records);
+			}
+		}
+		catch (GeneralSecurityException e) {
+			logger.warning("A relay batch from " + (from != null ? "cluster node " + from : socket.getRemoteSocketAddress()) + " failed authentication.");
+		}
+		catch (EOFException e) {
+			logger.fine("A cluster link closed.");
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "A cluster link failed: ", e);
+		}
+		finally {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+				logger.fine("IOException occurred when closing a cluster link.");
+			}
+			if (from != null && inbound.remove(from, link)) {
+				forget(from);
+				logger.info("Cluster node " + from + " disconnected.");
+			}
+		}
+	}
+
+	private void forget(String node) {
+		reservations.values().removeIf(node::equals);
+	}
+
+	/**
+	 * The link this node sends its relay traffic to another node on. It connects, and reconnects with a growing delay whenever it
+	 * fails, on its own thread, which then writes out queued records in batches.
+	 */
+	private class Peer implements Runnable {
+		final String id;
+		final InetSocketAddress address;
+		final LinkedBlockingQueue<byte[]> queue = new LinkedBlockingQueue<byte[]>(QUEUE_LIMIT);
+		volatile boolean connected;
+
+		Peer(String id, InetSocketAddress address) {
+			this.id = id;
+			this.address = address;
+		}
+
+		void send(byte[] record) {
+			if (record != null && connected && !queue.offer(record))
+				logger.warning("The relay queue to cluster node " + id + " is full, a record was dropped.");
+		}
+
+		public void run() {
+			long backoff = 100;
+			while (true) {
+				try (Socket socket = new Socket()) {
+					socket.connect(address, 5000);
+					socket.setTcpNoDelay(true);
+					OutputStream out = socket.getOutputStream();
+					new DataOutputStream(out).writeInt(MAGIC);
+					out.flush();
+					byte[] challenge = new byte[CHALLENGE_LENGTH];
+					socket.setSoTimeout(5000);
+					new DataInputStream(socket.getInputStream()).readFully(challenge);
+					socket.setSoTimeout(0);
+					//The greeting and claims go ahead of the queue rather than into it, so however many nicknames this node
+					//owns they cannot overflow it, and nothing relayed in the meantime can come before them
+					queue.clear();
+					ArrayDeque<byte[]> resync = new ArrayDeque<byte[]>();
+					resync.add(record(HELLO, o -> o.writeUTF(ClusterNode.this.id)));
+					for (String nickname : users.nicknames()) {
+						byte[] claim = owner(nickname).equals(id) ? record(CLAIM, o -> o.writeUTF(nickname)) : null;
+						if (claim != null)
+							resync.add(claim);
+					}
+					connected = true;
+					backoff = 100;
+					logger.info("Connected to cluster node " + id + " at " + address + ".");
+					write(out, key != null ? linkKey(challenge) : null, resync);
+				}
+				catch (IOException | GeneralSecurityException e) {
+					if (connected)
+						logger.log(Level.WARNING, "Lost the link to cluster node " + id + ": ", e);
+				}
+				catch (RuntimeException e) {
+					logger.log(Level.SEVERE, "The link to cluster node " + id + " failed unexpectedly, so it will be reconnected: ", e);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				connected = false;
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				backoff = Math.min(backoff * 2, 5000);
+			}
+		}
+
+		//Writes everything queued since the last write as one numbered batch, sealed with the link's key if there is one, until the
+		//link fails. An idle link sends an empty batch every second, so that a node which has gone away is noticed before anything
+		//needs to be sent to it. The backlog is sent first.
+		private void write(OutputStream socketOut, SecretKeySpec linkKey, ArrayDeque<byte[]> backlog) throws IOException, GeneralSecurityException, InterruptedException {
+			DataOutputStream out = new DataOutputStream(socketOut);
+			Cipher cipher = linkKey != null ? Cipher.getInstance("AES/GCM/NoPadding") : null;
+			long counter = 0;
+			ByteArrayOutputStream batch = new ByteArrayOutputStream();
+			while (true) {
+				if (backlog.isEmpty()) {
+					byte[] first = queue.poll(1, TimeUnit.SECONDS);
+					if (first == null) {
+						out.writeInt(0);
+						out.flush();
+						continue;
+					}
+					backlog.add(first);
+					queue.drainTo(backlog);
+				}
+				batch.reset();
+				while (!backlog.isEmpty() && batch.size() + backlog.peek().length <= MAX_BATCH)
+					batch.write(backlog.poll());
+				if (batch.size() == 0) {
+					logger.warning("A relay record of " + backlog.poll().length + " bytes is too large to send to the cluster.");
+					continue;
+				}
+
+				byte[] body = batch.toByteArray();
+				byte[] number = ByteBuffer.allocate(COUNTER_LENGTH).putLong(++counter).array();
+				if (cipher != null) {
+					cipher.init(Cipher.ENCRYPT_MODE, linkKey, nonce(counter));
+					cipher.updateAAD(number);
+					body = cipher.doFinal(body);
+				}
+				out.writeInt(COUNTER_LENGTH + body.length);
+				out.write(number);
+				out.write(body);
+				out.flush();
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+/**
+ * @description Keeps Diffie-Hellman parameters and key pairs generated ahead of time, so that a handshake takes a key pair from
+ * a pool instead of generating one while the other end waits
+ */
+
+import java.math.BigInteger;
+import java.security.AlgorithmParameterGenerator;
+import java.security.AlgorithmParameters;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.spec.DHParameterSpec;
+
+public class DHKeyPool {
+    /*
+     * Well-known groups
+     *
+     * Using a fixed group skips parameter generation entirely, and lets key pairs for it be generated before anyone asks.
+     */
+    //RFC 7919 ffdhe2048, used for 2048 bit requests when fixed groups are enabled
+    public static final DHParameterSpec FFDHE_2048 = group(2048, 224,
+            "FFFFFFFFFFFFFFFFADF85458A2BB4A9AAFDC5620273D3CF1D8B9C583CE2D3695A9E13641146433FBCC939DCE249B3EF97D2FE363630C75D8"
+            + "F681B202AEC4617AD3DF1ED5D5FD65612433F51F5F066ED0856365553DED1AF3B557135E7F57C935984F0C70E0E68B77E2A689DAF3EFE872"
+            + "1DF158A136ADE73530ACCA4F483A797ABC0AB182B324FB61D108A94BB2C8E3FBB96ADAB760D7F4681D4F42A3DE394DF4AE56EDE76372BB19"
+            + "0B07A7C8EE0A6D709E02FCE1CDF7E2ECC03404CD28342F619172FE9CE98583FF8E4F1232EEF28183C3FE3B1B4C6FAD733BB5FCBC2EC22005"
+            + "C58EF1837D1683B2C6F34A26C1B2EFFA886B423861285C97FFFFFFFFFFFFFFFF");
+
+    //RFC 3526 group 14, which is what the JDK uses for its own 2048 bit DH keys
+    public static final DHParameterSpec MODP_2048 = group(2048, 224,
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B"
+            + "302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE6"
+            + "49286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D"
+            + "670C354E4ABC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+            + "3995497CEA956AE515D2261898FA051015728E5A8AACAA68FFFFFFFFFFFFFFFF");
+
+    //RFC 3526 group 15, used for 3072 bit requests when fixed groups are enabled
+    public static final DHParameterSpec MODP_3072 = group(3072, 256,
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DDEF9519B3CD3A431B"
+            + "302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7EDEE386BFB5A899FA5AE9F24117C4B1FE6"
+            + "49286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F83655D23DCA3AD961C62F356208552BB9ED529077096966D"
+            + "670C354E4ABC9804F1746C08CA18217C32905E462E36CE3BE39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF695581718"
+            + "3995497CEA956AE515D2261898FA051015728E5A8AAAC42DAD33170D04507A33A85521ABDF1CBA64ECFB850458DBEF0A8AEA71575D060C7D"
+            + "B3970F85A6E1E4C7ABF5AE8CDB0933D71E8C94E04A25619DCEE3D2261AD2EE6BF12FFA06D98A0864D87602733EC86A64521F2B18177B200C"
+            + "BBE117577A615D6C770988C0BAD946E208E24FA074E5AB3143DB5BFCE0FD108E4B82D120A93AD2CAFFFFFFFFFFFFFFFF");
+
+    /*
+     * Configuration, read from system properties
+     */
+    //How many key pairs to keep ready for each pooled group
+    private static final int keyPairsPerGroup = Integer.getInteger("securechat.dh.keyPairs", 16);
+    //How many generated parameter sets to keep ready for each size in securechat.dh.paramSizes
+    private static final int paramsPerSize = Integer.getInteger("securechat.dh.params", 2);
+    //The sizes, other than those of fixed groups, to generate parameters for ahead of time
+    private static final String paramSizes = System.getProperty("securechat.dh.paramSizes", "1024");
+    //Whether requests for 2048 and 3072 bit parameters are answered with fixed groups instead of new parameters
+    private static final boolean fixedGroups = !"false".equalsIgnoreCase(System.getProperty("securechat.dh.fixedGroups"));
+
+    private static final Logger logger = Logger.getLogger(DHKeyPool.class.getName());
+
+    //Key pair pools for the fixed groups, keyed by each group's prime and generator
+    private static final Map<List<BigInteger>, KeyPairPool> keyPairs = new HashMap<List<BigInteger>, KeyPairPool>();
+    //Parameter pools by size
+    private static final Map<Integer, ParameterPool> params = new TreeMap<Integer, ParameterPool>();
+    //Pools that have fallen below their target, waiting for the worker to refill them
+    private static final BlockingQueue<Pool<?>> refills = new LinkedBlockingQueue<Pool<?>>();
+
+    static {
+        for (DHParameterSpec group : new DHParameterSpec[] {FFDHE_2048, MODP_2048, MODP_3072}) {
+            keyPairs.put(groupKey(group), new KeyPairPool(group));
+        }
+        for (String size : paramSizes.split(",")) {
+            if (!size.trim().isEmpty()) {
+                int bits = Integer.parseInt(size.trim());
+                params.put(bits, new ParameterPool(bits));
+            }
+        }
+        for (Pool<?> pool : keyPairs.values()) {
+            pool.requestRefill();
+        }
+        for (Pool<?> pool : params.values()) {
+            pool.requestRefill();
+        }
+        Thread worker = new Thread(DHKeyPool::refill, "DHKeyPool-refill");
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MIN_PRIORITY);
+        worker.start();
+    }
+
+    /*
+     * Public Methods
+     */
+    //Returns parameters of the given size: a fixed group if there is one, otherwise a pooled or, if the pool is empty, new set
+    public static DHParameterSpec getParameters(int size) throws Exception {
+        if (fixedGroups && size == 2048) {
+            return FFDHE_2048;
+        }
+        if (fixedGroups && size == 3072) {
+            return MODP_3072;
+        }
+        ParameterPool pool = params.get(size);
+        return pool != null ? pool.take() : generateParameters(size);
+    }
+
+    //Returns a key pair for the given parameters, from the pool when they are one of the fixed groups
+    public static KeyPair getKeyPair(DHParameterSpec spec) throws Exception {
+        KeyPairPool pool = keyPairs.get(groupKey(spec));
+        return pool != null ? pool.take() : generateKeyPair(spec);
+    }
+
+    //Summarises the pools for the server log
+    public static String describe() {
+        return keyPairs.size() + " fixed groups with " + keyPairsPerGroup + " pooled key pairs each, "
+                + (fixedGroups ? "used for 2048 and 3072 bit requests, " : "not used for requests, ")
+                + "parameters pooled for sizes " + params.keySet();
+    }
+
+    /*
+     * Pool Management
+     */
+    //A bounded set of ready items, refilled in the background whenever one is taken
+    private static abstract class Pool<T> {
+        final BlockingQueue<T> ready;
+        final AtomicBoolean refillRequested = new AtomicBoolean();
+
+        Pool(int capacity) {
+            this.ready = new ArrayBlockingQueue<T>(Math.max(1, capacity));
+        }
+
+        abstract T generate() throws Exception;
+
+        //Takes a ready item, generating one inline only if the pool has run dry
+        T take() throws Exception {
+            T item = this.ready.poll();
+            this.requestRefill();
+            return item != null ? item : this.generate();
+        }
+
+        void requestRefill() {
+            if (this.refillRequested.compareAndSet(false, true)) {
+                refills.add(this);
+            }
+        }
+
+        void fill() throws Exception {
+            this.refillRequested.set(false);
+            while (this.ready.remainingCapacity() > 0) {
+                this.ready.offer(this.generate());
+            }
+        }
+    }
+
+    private static class KeyPairPool extends Pool<KeyPair> {
+        final DHParameterSpec spec;
+
+        KeyPairPool(DHParameterSpec spec) {
+            super(keyPairsPerGroup);
+            this.spec = spec;
+        }
+
+        KeyPair generate() throws Exception {
+            return generateKeyPair(this.spec);
+        }
+    }
+
+    private static class ParameterPool extends Pool<DHParameterSpec> {
+        final int size;
+
+        ParameterPool(int size) {
+            super(paramsPerSize);
+            this.size = size;
+        }
+
+        DHParameterSpec generate() throws Exception {
+            return generateParameters(this.size);
+        }
+    }
+
+    //Runs forever on the worker thread, topping up each pool that asks for it
+    private static void refill() {
+        while (true) {
+            try {
+                refills.take().fill();
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                logger.log(Level.WARNING, "Failed to refill a Diffie-Hellman pool: ", e);
+            }
+        }
+    }
+    private static DHParameterSpec generateParameters(int size) throws Exception {
+        AlgorithmParameterGenerator paramGen = AlgorithmParameterGenerator.getInstance("DH");
+        paramGen.init(size);
+        AlgorithmParameters generated = paramGen.generateParameters();
+        return generated.getParameterSpec(DHParameterSpec.class);
+    }
+
+    private static KeyPair generateKeyPair(DHParameterSpec spec) throws Exception {
+        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
+        keyPairGen.initialize(spec);
+        return keyPairGen.generateKeyPair();
+    }
+
+    private static List<BigInteger> groupKey(DHParameterSpec spec) {
+        return Arrays.asList(spec.getP(), spec.getG());
+    }
+
+    private static DHParameterSpec group(int size, int privateValueLength, String prime) {
+        BigInteger p = new BigInteger(prime, 16);
+        if (p.bitLength() != size) {
+            throw new IllegalStateException("Malformed " + size + " bit group.");
+        }
+        return new DHParameterSpec(p, BigInteger.valueOf(2), privateValueLength);
+    }
+}
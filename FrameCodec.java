@@ -0,0 +1,267 @@
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes the frames exchanged between the server and its users. A frame is the ordinal of its {@link TypeOfData},
+ * the length of its contents as an unsigned varint, and then the contents themselves, so messages survive being split or
+ * coalesced by TCP and are not limited to a single read.
+ *
+ * The legacy unframed format, where the first byte of a read is the type and the rest of that read is the message, is kept for
+ * existing clients and is the default. The system property securechat.framing=length switches the server to length-prefixed frames,
+ * and securechat.maxFrameLength bounds the size of a single frame's contents (1 MiB by default).
+ *
+ * @author David Arena
+ */
+public class FrameCodec {
+	/**
+	 * Whether the server uses the legacy unframed format.
+	 */
+	public static final boolean LEGACY = !"length".equalsIgnoreCase(System.getProperty("securechat.framing"));
+
+	/**
+	 * The largest message that can be received in a single read, and so sent, in the legacy format.
+	 */
+	public static final int LEGACY_MAX_LENGTH = 1000;
+
+	//The largest array most JVMs will allocate, and the most a frame's type and length can take before its contents
+	private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+	private static final int MAX_HEADER_LENGTH = 1 + 5;
+
+	/**
+	 * The largest message contents allowed in a length-prefixed frame. securechat.maxFrameLength is capped so that a whole frame
+	 * still fits in one buffer.
+	 */
+	public static final int MAX_FRAME_LENGTH = Math.min(Integer.getInteger("securechat.maxFrameLength", 1 << 20), MAX_BUFFER_SIZE - MAX_HEADER_LENGTH);
+
+	private static final int INITIAL_BUFFER_SIZE = 2048;
+	private static final TypeOfData[] TYPES = TypeOfData.values();
+
+	/**
+	 * @return the largest message that can be sent in the current format
+	 */
+	public static int maxMessageLength() {
+		return LEGACY ? LEGACY_MAX_LENGTH : MAX_FRAME_LENGTH;
+	}
+
+	/**
+	 * Converts the first byte of a frame to its type.
+	 * @param ordinal
+	 * @return the type of the message
+	 * @throws SocketException if the byte does not correspond to a type
+	 */
+	public static TypeOfData toType(int ordinal) throws SocketException {
+		if (ordinal < 0 || ordinal >= TYPES.length)
+			throw new SocketException("Invalid message type " + ordinal + " on user's socket.");
+		return TYPES[ordinal];
+	}
+
+	/**
+	 * Builds the bytes that precede a message of the given type and length in the current format.
+	 * @param type
+	 * @param length
+	 * @return the frame header
+	 */
+	public static byte[] header(TypeOfData type, int length) {
+		if (LEGACY)
+			return new byte[] {(byte) type.ordinal()};
+		byte[] header = new byte[1 + varintLength(length)];
+		header[0] = (byte) type.ordinal();
+		int i = 1;
+		while ((length & ~0x7F) != 0) {
+			header[i++] = (byte) ((length & 0x7F) | 0x80);
+			length >>>= 7;
+		}
+		header[i] = (byte) length;
+		return header;
+	}
+
+	/**
+	 * Builds a complete frame, ready to be written, for a message of the given type.
+	 * @param type
+	 * @param data
+	 * @return the header followed by the message
+	 */
+	public static ByteBuffer frame(TypeOfData type, byte[] data) {
+		byte[] header = header(type, data.length);
+		ByteBuffer frame = ByteBuffer.allocate(header.length + data.length);
+		frame.put(header).put(data).flip();
+		return frame;
+	}
+
+	private static int varintLength(int value) {
+		int length = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	/**
+	 * Incrementally reassembles frames from the bytes of one connection. Bytes are read directly into the decoder's {@link #buffer()},
+	 * which is reused between reads and only grows when a frame larger than it arrives. After each read, {@link #next()} is called
+	 * until it returns false, consuming one complete frame per call.
+	 */
+	public static class Decoder {
+		private final boolean legacy;
+		private ByteBuffer buffer;
+		private int readIndex;
+
+		private TypeOfData pendingType;
+		private TypeOfData type;
+		private int payloadOffset;
+		private int payloadLength;
+
+		/**
+		 * Constructs a decoder for the server's current format.
+		 */
+		public Decoder() {
+			this(LEGACY);
+		}
+
+		/**
+		 * Constructs a decoder for either the legacy or the length-prefixed format.
+		 * @param legacy
+		 */
+		public Decoder(boolean legacy) {
+			this.legacy = legacy;
+			this.buffer = ByteBuffer.allocate(legacy ? LEGACY_MAX_LENGTH + 1 : INITIAL_BUFFER_SIZE);
+		}
+
+		/**
+		 * Returns the buffer the next read should fill, positioned after any partial frame already received.
+		 * Any frame returned by {@link #next()} is no longer valid once this is called.
+		 * @return the buffer to read into
+		 */
+		public ByteBuffer buffer() {
+			if (legacy) {
+				buffer.clear();
+				readIndex = 0;
+				if (pendingType != null)
+					buffer.limit(LEGACY_MAX_LENGTH);
+				return buffer;
+			}
+			int unread = buffer.position() - readIndex;
+			if (readIndex > 0) {
+				if (unread > 0)
+					System.arraycopy(buffer.array(), readIndex, buffer.array(), 0, unread);
+				buffer.position(unread);
+				readIndex = 0;
+			}
+			return buffer;
+		}
+
+		/**
+		 * Decodes the next complete frame from the bytes read so far.
+		 * @return true if a frame is available through {@link #type()} and {@link #payload()}, false if more bytes are needed
+		 * @throws SocketException if the bytes read do not form a valid frame
+		 */
+		public boolean next() throws SocketException {
+			return legacy ? nextLegacy() : nextFramed();
+		}
+
+		private boolean nextLegacy() throws SocketException {
+			byte[] bytes = buffer.array();
+			int end = buffer.position();
+			if (readIndex >= end)
+				return false;
+			int start = readIndex;
+			if (pendingType == null)
+				pendingType = toType(bytes[start++] & 0xFF);
+			if (start == end) {
+				readIndex = end;
+				return false;
+			}
+			type = pendingType;
+			pendingType = null;
+			payloadOffset = start;
+			payloadLength = end - start;
+			readIndex = end;
+			return true;
+		}
+
+		private boolean nextFramed() throws SocketException {
+			byte[] bytes = buffer.array();
+			int end = buffer.position();
+			int i = readIndex;
+			if (i >= end)
+				return false;
+			TypeOfData frameType = toType(bytes[i++] & 0xFF);
+
+			int length = 0;
+			int shift = 0;
+			while (true) {
+				if (i >= end)
+					return false;
+				byte b = bytes[i++];
+				length |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0)
+					break;
+				shift += 7;
+				if (shift > 28)
+					throw new SocketException("Malformed frame length on user's socket.");
+			}
+			if (length < 0 || length > MAX_FRAME_LENGTH)
+				throw new SocketException("Frame of length " + (length & 0xFFFFFFFFL) + " exceeds the maximum of " + MAX_FRAME_LENGTH + ".");
+
+			if (end - i < length) {
+				int frameLength = i - readIndex + length;
+				if (frameLength > buffer.capacity())
+					grow(frameLength);
+				return false;
+			}
+			type = frameType;
+			payloadOffset = i;
+			payloadLength = length;
+			readIndex = i + length;
+			return true;
+		}
+
+		private void grow(int frameLength) {
+			int capacity = buffer.capacity();
+			while (capacity < frameLength)
+				capacity = (int) Math.min(MAX_BUFFER_SIZE, 2L * capacity);
+			ByteBuffer larger = ByteBuffer.allocate(capacity);
+			buffer.flip();
+			buffer.position(readIndex);
+			larger.put(buffer);
+			buffer = larger;
+			readIndex = 0;
+		}
+
+		/**
+		 * @return true if this decoder reads the legacy unframed format
+		 */
+		public boolean isLegacy() {
+			return legacy;
+		}
+
+		/**
+		 * @return the type of the frame returned by the last successful call to {@link #next()}
+		 */
+		public TypeOfData type() {
+			return type;
+		}
+
+		/**
+		 * @return the array holding the contents of the current frame
+		 */
+		public byte[] payload() {
+			return buffer.array();
+		}
+
+		/**
+		 * @return the offset of the current frame's contents in {@link #payload()}
+		 */
+		public int payloadOffset() {
+			return payloadOffset;
+		}
+
+		/**
+		 * @return the length of the current frame's contents
+		 */
+		public int payloadLength() {
+			return payloadLength;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of non-negative values, such as latencies in nanoseconds, that can be recorded from any thread without locking.
+ * Values are counted in buckets of logarithmically increasing width, in the manner of HdrHistogram: values below 128 are counted
+ * exactly, and larger values in 64 buckets per power of two, so any percentile is reported to within 1.6% of the value recorded,
+ * whatever its magnitude, in a fixed 30 KiB of counts.
+ *
+ * @author David Arena
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKETS = 64;
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + (63 - 7) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * @param value
+	 */
+	public void record(long value) {
+		value = Math.max(0, value);
+		counts.incrementAndGet(index(value));
+		total.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+
+	/**
+	 * Adds every value recorded by another histogram to this one.
+	 * @param other
+	 */
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0)
+				counts.addAndGet(i, count);
+		}
+		total.add(other.total.sum());
+		sum.add(other.sum.sum());
+		max.accumulate(other.max.get());
+	}
+
+	/**
+	 * @return the number of values recorded
+	 */
+	public long count() {
+		return total.sum();
+	}
+
+	/**
+	 * @return the largest value recorded, or 0 if there are none
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * @return the mean of the values recorded, or 0 if there are none
+	 */
+	public double mean() {
+		long count = total.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	/**
+	 * Returns the value below which the given percentage of recorded values fall, rounded up to the top of its bucket.
+	 * @param percentile between 0 and 100
+	 * @return the value at the percentile, or 0 if there are none
+	 */
+	public long percentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += counts.get(i);
+		if (count == 0)
+			return 0;
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank)
+				return Math.min(highestValue(i), max.get());
+		}
+		return max.get();
+	}
+
+	private static int index(long value) {
+		if (value < LINEAR)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	private static long highestValue(int index) {
+		if (index < LINEAR)
+			return index;
+		int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+		long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((top + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,329 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A headless client that puts a server under load with many simulated users, for sizing deployments. Each user connects, sets a
+ * nickname, exchanges keys through a {@link SecureConnection} and optionally switches to AEAD session mode and joins a room, just as
+ * a real client would, and then sends encrypted messages at a fixed rate until the run ends.
+ *
+ * Every message carries the time it was due to be sent, so when the users that receive it decrypt it, the delivery latency is
+ * recorded from that time rather than from when the sender got round to it; a stalled sender is then reported as the latency its
+ * users would have seen. Latencies and connection setup times (from connecting to being ready to send) are kept in
+ * {@link LatencyHistogram}s, and a summary is printed every 5 seconds. When the run ends a report of the settings, counts,
+ * throughput and percentiles is written as JSON to securechat.load.report (load-report.json by default), so runs can be compared.
+ *
+ * Configured by the system properties securechat.load.host (localhost), securechat.load.port (6800), securechat.load.users (100),
+ * securechat.load.rate (messages per second per user, 1), securechat.load.size (message bytes, 64), securechat.load.duration
+ * (seconds of sending, 30), securechat.load.rampUp (seconds over which users connect, 5), securechat.load.roomSize (users per room,
+ * 0 for everyone in the lobby), securechat.load.dhBits (2048) and securechat.load.aead (false). The server must use length-prefixed
+ * frames (securechat.framing=length), as the legacy format cannot be read reliably when messages arrive back to back.
+ *
+ * @author David Arena
+ */
+public class LoadGenerator {
+	private static final String HOST = System.getProperty("securechat.load.host", "localhost");
+	private static final int PORT = Integer.getInteger("securechat.load.port", 6800);
+	private static final int USERS = Integer.getInteger("securechat.load.users", 100);
+	private static final double RATE = Double.parseDouble(System.getProperty("securechat.load.rate", "1"));
+	private static final int SIZE = Integer.getInteger("securechat.load.size", 64);
+	private static final long DURATION = TimeUnit.SECONDS.toNanos(Long.getLong("securechat.load.duration", 30));
+	private static final long RAMP_UP = TimeUnit.SECONDS.toNanos(Long.getLong("securechat.load.rampUp", 5));
+	private static final int ROOM_SIZE = Integer.getInteger("securechat.load.roomSize", 0);
+	private static final int DH_BITS = Integer.getInteger("securechat.load.dhBits", 2048);
+	private static final boolean AEAD = Boolean.getBoolean("securechat.load.aead");
+	private static final String REPORT = System.getProperty("securechat.load.report", "load-report.json");
+	private static final long DRAIN_TIME = TimeUnit.SECONDS.toNanos(2);
+	private static final long INTERVAL = TimeUnit.SECONDS.toNanos(5);
+	private static final int CONNECTORS = 64;
+
+	//Nicknames start with this, so messages from other clients or earlier runs are not mistaken for this run's
+	private static final String RUN = "load" + Long.toString(System.currentTimeMillis() % 1000000, 36) + "-";
+
+	private static final LatencyHistogram latency = new LatencyHistogram();
+	private static final LatencyHistogram setup = new LatencyHistogram();
+	private static final LongAdder sent = new LongAdder();
+	private static final LongAdder received = new LongAdder();
+	private static final LongAdder bytesSent = new LongAdder();
+	private static final LongAdder expected = new LongAdder();
+	private static final AtomicInteger connected = new AtomicInteger();
+	private static final AtomicInteger failed = new AtomicInteger();
+	private static final AtomicInteger dropped = new AtomicInteger();
+	private static volatile LatencyHistogram interval = new LatencyHistogram();
+	private static volatile boolean running = true;
+
+	public static void main(String[] args) throws Exception {
+		//Frames are encoded the same way as the server's, so the client must agree with it
+		if (System.getProperty("securechat.framing") == null)
+			System.setProperty("securechat.framing", "length");
+		System.out.println("Starting " + USERS + " users against " + HOST + ":" + PORT + " at " + RATE + " messages per second each, "
+				+ SIZE + " bytes per message" + (ROOM_SIZE > 0 ? ", " + ROOM_SIZE + " users per room" : "") + (AEAD ? ", AEAD" : ""));
+
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), r -> {
+			Thread thread = new Thread(r, "LoadGenerator-sender");
+			thread.setDaemon(true);
+			return thread;
+		});
+		//Connecting waits for the handshake, so it is done off the scheduler to keep the ramp and the sends on time
+		ExecutorService connectors = Executors.newFixedThreadPool(CONNECTORS, r -> {
+			Thread thread = new Thread(r, "LoadGenerator-connector");
+			thread.setDaemon(true);
+			return thread;
+		});
+		SimulatedUser[] users = new SimulatedUser[USERS];
+		CountDownLatch ready = new CountDownLatch(USERS);
+		long start = System.nanoTime();
+		for (int i = 0; i < USERS; i++) {
+			users[i] = new SimulatedUser(i, ready);
+			long delay = USERS > 1 ? RAMP_UP * i / (USERS - 1) : 0;
+			SimulatedUser user = users[i];
+			scheduler.schedule(() -> connectors.execute(user::connect), delay, TimeUnit.NANOSECONDS);
+		}
+		ready.await();
+		connectors.shutdown();
+		long setupTime = System.nanoTime() - start;
+		System.out.println(String.format(Locale.ROOT, "%d users connected and %d failed in %.1f s", connected.get(), failed.get(), setupTime / 1e9));
+
+		long sendStart = System.nanoTime();
+		for (SimulatedUser user : users)
+			user.startSending(scheduler, sendStart);
+		long end = sendStart + DURATION;
+		long lastSent = 0, lastReceived = 0;
+		for (long next = sendStart + INTERVAL; next < end + INTERVAL; next += INTERVAL) {
+			TimeUnit.NANOSECONDS.sleep(Math.max(0, Math.min(next, end) - System.nanoTime()));
+			LatencyHistogram recent = interval;
+			interval = new LatencyHistogram();
+			long seconds = TimeUnit.NANOSECONDS.toSeconds(Math.min(next, end) - sendStart);
+			System.out.println(String.format(Locale.ROOT, "%4d s: sent %d, delivered %d, p50 %.2f ms, p99 %.2f ms, max %.2f ms", seconds,
+					sent.sum() - lastSent, received.sum() - lastReceived, millis(recent.percentile(50)), millis(recent.percentile(99)), millis(recent.max())));
+			lastSent = sent.sum();
+			lastReceived = received.sum();
+		}
+		scheduler.shutdownNow();
+		long sendTime = System.nanoTime() - sendStart;
+		//Messages already sent are still counted while they arrive
+		while (received.sum() < expected.sum() && System.nanoTime() - sendStart - sendTime < DRAIN_TIME)
+			TimeUnit.MILLISECONDS.sleep(10);
+		running = false;
+		for (SimulatedUser user : users)
+			user.close();
+
+		String report = report(sendTime);
+		try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(Paths.get(REPORT), StandardCharsets.UTF_8))) {
+			writer.println(report);
+		}
+		System.out.println(report);
+	}
+
+	private static String report(long sendTime) {
+		double seconds = sendTime / 1e9;
+		StringBuilder json = new StringBuilder("{\n");
+		json.append("  \"settings\": {\"host\": \"").append(HOST).append("\", \"port\": ").append(PORT).append(", \"users\": ").append(USERS)
+				.append(", \"rate\": ").append(RATE).append(", \"size\": ").append(SIZE).append(", \"durationSeconds\": ")
+				.append(TimeUnit.NANOSECONDS.toSeconds(DURATION)).append(", \"roomSize\": ").append(ROOM_SIZE).append(", \"dhBits\": ")
+				.append(DH_BITS).append(", \"aead\": ").append(AEAD).append("},\n");
+		json.append("  \"connections\": {\"connected\": ").append(connected.get()).append(", \"failed\": ").append(failed.get())
+				.append(", \"dropped\": ").append(dropped.get()).append(", \"setupMillis\": ").append(percentiles(setup)).append("},\n");
+		json.append("  \"messages\": {\"sent\": ").append(sent.sum()).append(", \"expected\": ").append(expected.sum())
+				.append(", \"delivered\": ").append(received.sum()).append(String.format(Locale.ROOT, ", \"sentPerSecond\": %.1f", sent.sum() / seconds))
+				.append(String.format(Locale.ROOT, ", \"deliveredPerSecond\": %.1f", received.sum() / seconds))
+				.append(String.format(Locale.ROOT, ", \"sentBytesPerSecond\": %.1f", bytesSent.sum() / seconds)).append("},\n");
+		json.append("  \"latencyMillis\": ").append(percentiles(latency)).append("\n}");
+		return json.toString();
+	}
+
+	private static String percentiles(LatencyHistogram histogram) {
+		return String.format(Locale.ROOT, "{\"count\": %d, \"mean\": %.3f, \"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f}",
+				histogram.count(), histogram.mean() / 1e6, millis(histogram.percentile(50)), millis(histogram.percentile(90)),
+				millis(histogram.percentile(99)), millis(histogram.percentile(99.9)), millis(histogram.max()));
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+
+	/**
+	 * A single simulated user. Its connection is read by a thread of its own, and its messages are sent by the shared scheduler.
+	 */
+	private static class SimulatedUser implements Runnable {
+		private final int id;
+		private final String nickname;
+		private final CountDownLatch ready;
+		private final SecureConnection secureCon = new SecureConnection();
+		private final CountDownLatch handshake = new CountDownLatch(1);
+		private Socket socket;
+		private OutputStream out;
+		private long connectStart;
+		private boolean setUp;
+		private int room = -1;
+		private long sequence;
+
+		SimulatedUser(int id, CountDownLatch ready) {
+			this.id = id;
+			this.nickname = RUN + id;
+			this.ready = ready;
+		}
+
+		/**
+		 * Connects, sets the user's nickname and exchanges keys, then counts down the ready latch whether or not that succeeded.
+		 */
+		void connect() {
+			try {
+				connectStart = System.nanoTime();
+				socket = new Socket();
+				socket.connect(new InetSocketAddress(HOST, PORT), 10000);
+				socket.setTcpNoDelay(true);
+				out = socket.getOutputStream();
+				Thread reader = new Thread(null, this, "LoadGenerator-" + id, 256 * 1024);
+				reader.setDaemon(true);
+				reader.start();
+				send(TypeOfData.NICKNAME, nickname.getBytes(StandardCharsets.UTF_8));
+				send(TypeOfData.DH_PUB_KEY, secureCon.getPublicKey(DH_BITS));
+				if (!handshake.await(30, TimeUnit.SECONDS))
+					throw new IOException("The server did not complete the handshake.");
+				setup.record(System.nanoTime() - connectStart);
+				connected.incrementAndGet();
+				setUp = true;
+			}
+			catch (Exception e) {
+				failed.incrementAndGet();
+				System.err.println("User " + id + " failed to connect: " + e);
+				close();
+			}
+			finally {
+				ready.countDown();
+			}
+		}
+
+		/**
+		 * Starts sending at the configured rate, from a random point in the first period so users do not all send at once.
+		 */
+		void startSending(ScheduledExecutorService scheduler, long start) {
+			if (!setUp || RATE <= 0)
+				return;
+			long period = (long) (TimeUnit.SECONDS.toNanos(1) / RATE);
+			long first = start + ThreadLocalRandom.current().nextLong(period);
+			scheduler.scheduleAtFixedRate(() -> sendMessage(first + sequence++ * period), first - System.nanoTime(), period, TimeUnit.NANOSECONDS);
+		}
+
+		private void sendMessage(long due) {
+			byte[] text = new byte[SIZE];
+			Arrays.fill(text, (byte) 'x');
+			byte[] stamp = (Long.toString(due) + ' ').getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(stamp, 0, text, 0, Math.min(stamp.length, text.length));
+			try {
+				byte[] message = secureCon.encrypt(text);
+				send(TypeOfData.MESSAGE, message);
+				sent.increment();
+				bytesSent.add(message.length);
+				expected.add(ROOM_SIZE > 0 ? Math.min(ROOM_SIZE, USERS - room * ROOM_SIZE) : connected.get());
+			}
+			catch (Exception e) {
+				close();
+			}
+		}
+
+		private void send(TypeOfData type, byte[] data) throws IOException {
+			ByteBuffer frame = FrameCodec.frame(type, data);
+			synchronized (this) {
+				out.write(frame.array(), frame.position(), frame.remaining());
+			}
+		}
+
+		/**
+		 * Reads the user's connection until it closes, completing the handshake and recording the latency of each message received.
+		 */
+		public void run() {
+			FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+			try {
+				InputStream in = socket.getInputStream();
+				while (true) {
+					ByteBuffer buffer = decoder.buffer();
+					int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+					if (read < 0)
+						break;
+					buffer.position(buffer.position() + read);
+					while (decoder.next())
+						receive(decoder.type(), Arrays.copyOfRange(decoder.payload(), decoder.payloadOffset(), decoder.payloadOffset() + decoder.payloadLength()));
+				}
+			}
+			catch (Exception e) {
+				//Reported below as a dropped connection
+			}
+			if (running) {
+				dropped.incrementAndGet();
+				handshake.countDown();
+			}
+		}
+
+		private void receive(TypeOfData type, byte[] data) throws Exception {
+			switch (type) {
+				case DH_PUB_KEY:
+					secureCon.processOtherPubKey(data);
+					if (AEAD)
+						send(TypeOfData.SESSION_MODE, "AEAD".getBytes(StandardCharsets.UTF_8));
+					else joinRoom();
+					break;
+				case SESSION_MODE:
+					secureCon.enableSessionMode(false);
+					joinRoom();
+					break;
+				case JOIN_ROOM:
+					handshake.countDown();
+					break;
+				case MESSAGE:
+					long now = System.nanoTime();
+					String message = new String(secureCon.decrypt(data), StandardCharsets.UTF_8);
+					if (!message.startsWith(RUN))
+						break;
+					int start = message.indexOf(',') + 1;
+					int end = message.indexOf(' ', start);
+					if (end < 0)
+						break;
+					long due = Long.parseLong(message.substring(start, end));
+					latency.record(now - due);
+					interval.record(now - due);
+					received.increment();
+					break;
+				default:
+					break;
+			}
+		}
+
+		private void joinRoom() throws IOException {
+			if (ROOM_SIZE <= 0) {
+				handshake.countDown();
+				return;
+			}
+			room = id / ROOM_SIZE;
+			send(TypeOfData.JOIN_ROOM, (RUN + "room" + room).getBytes(StandardCharsets.UTF_8));
+		}
+
+		void close() {
+			try {
+				if (socket != null)
+					socket.close();
+			}
+			catch (IOException e) {
+				//Nothing useful can be done if a socket fails to close
+			}
+		}
+	}
+}
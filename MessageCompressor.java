@@ -0,0 +1,207 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the chat messages of a single connection that asked for it with a COMPRESSION message. Each message is compressed
+ * before it is encrypted, on its own, with raw Deflate primed by a preset dictionary of common chat text, so that even a short
+ * message compresses well without any state being carried from one message to the next. Messages shorter than
+ * securechat.compression.threshold (64 bytes by default), and messages that would not get any shorter, are stored as they are.
+ *
+ * A compressed message starts with a byte saying which of the two it is, 0 for stored and 1 for deflated. Both ends must use the
+ * same dictionary, so it is part of the DEFLATE mode and is never changed; a new dictionary would be a new mode.
+ *
+ * The {@link Deflater} and {@link Inflater} are created once for the connection and reset for each message. They hold native memory
+ * until {@link #close()} is called. The level is set by securechat.compression.level (6 by default), and setting
+ * securechat.compression=false refuses every request for compression.
+ *
+ * @author David Arena
+ */
+public class MessageCompressor {
+	/**
+	 * Whether users may turn compression on.
+	 */
+	public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("securechat.compression"));
+	public static final int THRESHOLD = Integer.getInteger("securechat.compression.threshold", 64);
+	public static final int LEVEL = Integer.getInteger("securechat.compression.level", 6);
+
+	/**
+	 * The modes a COMPRESSION message can ask for.
+	 */
+	public static final String DEFLATE = "DEFLATE";
+	public static final String NONE = "NONE";
+
+	private static final byte STORED = 0;
+	private static final byte DEFLATED = 1;
+
+	//Deflate finds earlier text more cheaply the closer it is, so the most common words and phrases come last
+	private static final byte[] DICTIONARY = ("https://www. .com/ .org/ :) :( :D ;) xD <3 haha hahaha lmao lol omg btw idk imo tbh brb gtg np ty thx "
+			+ "good morning good night see you later talk to you later happy birthday congratulations awesome amazing "
+			+ "anyone know how to does anybody have a question about sounds good makes sense no problem thank you so much "
+			+ "I think that I don't know if you want to I'm not sure what do you mean have you tried did you see "
+			+ "because actually probably something everyone someone tomorrow yesterday tonight today weekend "
+			+ "what's that's there's it's I'm I've I'll you're don't can't won't didn't doesn't isn't "
+			+ "would could should about after again also back been before being from going have just know like "
+			+ "make more need only really right said some still than them then there they thing think this time "
+			+ "want was were what when where which while who will with work yeah yes your okay hello thanks "
+			+ "the and you that for are but not this with have what can all was your just get how so do it is to of in ").getBytes(StandardCharsets.UTF_8);
+
+	private final Deflater deflater = new Deflater(LEVEL, true);
+	private final Inflater inflater = new Inflater(true);
+	private final ReentrantLock deflaterLock = new ReentrantLock();
+	private final ReentrantLock inflaterLock = new ReentrantLock();
+	private final int maxLength;
+	private byte[] input = new byte[256];
+	private byte[] output = new byte[256];
+	private byte[] compressed = new byte[256];
+	private byte[] inflated = new byte[1024];
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a compressor for a connection, which refuses to inflate a message into more than the largest message that could
+	 * have been sent without compression.
+	 */
+	public MessageCompressor() {
+		this(FrameCodec.maxMessageLength());
+	}
+
+	/**
+	 * @param maxLength the most bytes a message may inflate to
+	 */
+	public MessageCompressor(int maxLength) {
+		this.maxLength = maxLength;
+	}
+
+	/**
+	 * Compresses a message, or stores it if compressing would not help. Only one thread may compress at a time.
+	 * @param text the message, which is read from its position to its limit without being changed
+	 * @return the compressed message, which is only valid until the next call
+	 */
+	public ByteBuffer compress(ByteBuffer text) {
+		deflaterLock.lock();
+		try {
+			checkOpen();
+			int length = text.remaining();
+			output = ensure(output, 1 + length);
+			if (length >= THRESHOLD) {
+				byte[] in;
+				int offset = 0;
+				if (text.hasArray()) {
+					in = text.array();
+					offset = text.arrayOffset() + text.position();
+				}
+				else {
+					in = input = ensure(input, length);
+					text.duplicate().get(in, 0, length);
+				}
+				deflater.reset();
+				deflater.setDictionary(DICTIONARY);
+				deflater.setInput(in, offset, length);
+				deflater.finish();
+				//Output that would be no shorter than the message does not fit, and the message is stored instead
+				int deflated = deflater.deflate(output, 1, length - 1);
+				if (deflater.finished()) {
+					output[0] = DEFLATED;
+					return ByteBuffer.wrap(output, 0, 1 + deflated);
+				}
+			}
+			output[0] = STORED;
+			text.duplicate().get(output, 1, length);
+			return ByteBuffer.wrap(output, 0, 1 + length);
+		}
+		finally {
+			deflaterLock.unlock();
+		}
+	}
+
+	/**
+	 * @param message a compressed message, from its position
+	 * @return true if the message was deflated, false if it was stored
+	 * @throws DataFormatException if the message does not start with a valid flag
+	 */
+	public static boolean isDeflated(ByteBuffer message) throws DataFormatException {
+		if (!message.hasRemaining())
+			throw new DataFormatException("The compressed message is empty.");
+		byte flag = message.get(message.position());
+		if (flag != STORED && flag != DEFLATED)
+			throw new DataFormatException("The compressed message has an invalid flag " + flag + ".");
+		return flag == DEFLATED;
+	}
+
+	/**
+	 * Restores a compressed message. Only one thread may decompress at a time.
+	 * @param message the compressed message, which is read from its position to its limit without being changed
+	 * @return the message; a stored message is returned as a view of the same buffer, and an inflated one is only valid until
+	 * the next call
+	 * @throws DataFormatException if the message is corrupt or would inflate to more than the maximum length
+	 */
+	public ByteBuffer decompress(ByteBuffer message) throws DataFormatException {
+		if (!isDeflated(message)) {
+			ByteBuffer text = message.duplicate();
+			text.position(text.position() + 1);
+			return text;
+		}
+		inflaterLock.lock();
+		try {
+			checkOpen();
+			int length = message.remaining() - 1;
+			compressed = ensure(compressed, length);
+			ByteBuffer body = message.duplicate();
+			body.position(body.position() + 1);
+			body.get(compressed, 0, length);
+			inflater.reset();
+			inflater.setDictionary(DICTIONARY);
+			inflater.setInput(compressed, 0, length);
+			int total = 0;
+			while (!inflater.finished()) {
+				if (total == inflated.length) {
+					if (inflated.length >= maxLength)
+						throw new DataFormatException("The message inflates to more than " + maxLength + " bytes.");
+					inflated = Arrays.copyOf(inflated, (int) Math.min(maxLength, 2L * inflated.length));
+				}
+				int read = inflater.inflate(inflated, total, inflated.length - total);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new DataFormatException("The compressed message is truncated.");
+				total += read;
+			}
+			return ByteBuffer.wrap(inflated, 0, total);
+		}
+		finally {
+			inflaterLock.unlock();
+		}
+	}
+
+	/**
+	 * Frees the native memory held by the compressor. Any later call fails with an IllegalStateException.
+	 */
+	public void close() {
+		closed = true;
+		deflaterLock.lock();
+		try {
+			deflater.end();
+		}
+		finally {
+			deflaterLock.unlock();
+		}
+		inflaterLock.lock();
+		try {
+			inflater.end();
+		}
+		finally {
+			inflaterLock.unlock();
+		}
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("The compressor has been closed.");
+	}
+
+	private static byte[] ensure(byte[] buffer, int length) {
+		return buffer.length >= length ? buffer : new byte[Math.max(length, buffer.length * 2)];
+	}
+}
@@ -0,0 +1,458 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * An append-only journal of the chat messages sent through the server, so that users who join can be sent what they missed.
+ *
+ * The journal is a directory of segment files, each named after the sequence number of its first message and memory-mapped at a fixed
+ * size. A message is appended by copying it into the newest segment; once a segment is full, a new one is started. Each record is its
+ * length, the time it was sent, its sender and its text, and the length is written last, so a record cut short by a crash reads as the
+ * end of the segment. The offset and time of every record in the retained segments are kept in an index in memory, which is rebuilt
+ * by scanning the segments when the journal is opened.
+ *
+ * Disk and heap use are bounded by the number of segments kept (securechat.journal.segments, 8 by default) and their size
+ * (securechat.journal.segmentSize, 16 MiB by default); segments whose newest message is older than securechat.journal.retentionMinutes
+ * (one week by default) are deleted as well. With securechat.journal.encrypt=true, message text is sealed with AES-GCM under a key kept
+ * in the journal directory, with the sender and time authenticated alongside it.
+ *
+ * @author David Arena
+ */
+public class MessageJournal {
+	public static final long SEGMENT_SIZE = Long.getLong("securechat.journal.segmentSize", 16 << 20);
+	public static final int MAX_SEGMENTS = Math.max(1, Integer.getInteger("securechat.journal.segments", 8));
+	public static final long RETENTION_MINUTES = Long.getLong("securechat.journal.retentionMinutes", TimeUnit.DAYS.toMinutes(7));
+	public static final boolean ENCRYPT = Boolean.getBoolean("securechat.journal.encrypt");
+
+	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+	private static final String SUFFIX = ".seg";
+	private static final String KEY_FILE = "journal.key";
+	private static final int HEADER_LENGTH = 4 + 8 + 2;
+	private static final int NONCE_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+	private static final long FAILURE_WARNING_INTERVAL = TimeUnit.MINUTES.toNanos(1);
+
+	private final Path directory;
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final SecretKeySpec key;
+	private final Cipher cipher;
+	private final SecureRandom random = new SecureRandom();
+	private long nextSequence;
+	private long lastTimestamp;
+	//When a failure to append was last logged, as a nanoTime that is never 0, or 0 if none has been
+	private final AtomicLong lastFailureWarning = new AtomicLong();
+
+	/**
+	 * A message read back from the journal.
+	 */
+	public static class Entry {
+		private final String sender;
+		private final long timestamp;
+		private final byte[] text;
+
+		Entry(String sender, long timestamp, byte[] text) {
+			this.sender = sender;
+			this.timestamp = timestamp;
+			this.text = text;
+		}
+
+		/**
+		 * @return the nickname of the user who sent the message
+		 */
+		public String getSender() {
+			return sender;
+		}
+
+		/**
+		 * @return when the message was sent, in milliseconds since the epoch
+		 */
+		public long getTimestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @return the UTF-8 text of the message
+		 */
+		public byte[] getText() {
+			return text;
+		}
+	}
+
+	/**
+	 * One mapped file of the journal, and the index of the records in it.
+	 */
+	private static class Segment {
+		final long base;
+		final Path path;
+		final MappedByteBuffer buffer;
+		int[] offsets = new int[256];
+		long[] timestamps = new long[256];
+		int count;
+		int end;
+
+		Segment(long base, Path path, MappedByteBuffer buffer) {
+			this.base = base;
+			this.path = path;
+			this.buffer = buffer;
+		}
+
+		void index(int offset, long timestamp) {
+			if (count == offsets.length) {
+				offsets = Arrays.copyOf(offsets, count * 2);
+				timestamps = Arrays.copyOf(timestamps, count * 2);
+			}
+			offsets[count] = offset;
+			timestamps[count] = timestamp;
+			count++;
+		}
+
+		long newest() {
+			return count > 0 ? timestamps[count - 1] : Long.MAX_VALUE;
+		}
+	}
+
+	private MessageJournal(Path directory, SecretKeySpec key) throws GeneralSecurityException {
+		this.directory = directory;
+		this.key = key;
+		this.cipher = key != null ? Cipher.getInstance("AES/GCM/NoPadding") : null;
+	}
+
+	/**
+	 * Opens the journal in the given directory, creating the directory (but not its parents) if it does not exist, and indexes
+	 * the segments already in it.
+	 *
+	 * @param directory
+	 * @return the journal
+	 * @throws IOException if the directory or its segments cannot be opened
+	 */
+	public static MessageJournal open(Path directory) throws IOException {
+		if (!Files.isDirectory(directory))
+			Files.createDirectory(directory);
+		MessageJournal journal;
+		try {
+			journal = new MessageJournal(directory, ENCRYPT ? loadKey(directory.resolve(KEY_FILE)) : null);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException("AES-GCM is not available to encrypt the journal.", e);
+		}
+
+		List<Long> bases = new ArrayList<Long>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				try {
+					bases.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+				}
+				catch (NumberFormatException e) {
+					logger.warning("Ignoring unexpected file " + file + " in the message journal.");
+				}
+			}
+		}
+		Collections.sort(bases);
+		for (long base : bases) {
+			Segment segment = journal.map(base);
+			journal.scan(segment);
+			journal.segments.add(segment);
+			journal.nextSequence = base + segment.count;
+			journal.lastTimestamp = Math.max(journal.lastTimestamp, segment.count > 0 ? segment.newest() : 0);
+		}
+		journal.lock.lock();
+		try {
+			journal.retain(System.currentTimeMillis());
+		}
+		finally {
+			journal.lock.unlock();
+		}
+		logger.info("Message journal opened in " + directory + " with " + journal.size() + " messages in " + journal.segments.size() + " segments.");
+		return journal;
+	}
+
+	private static SecretKeySpec loadKey(Path file) throws IOException {
+		byte[] bytes;
+		if (Files.exists(file)) {
+			bytes = Files.readAllBytes(file);
+			if (bytes.length != 16)
+				throw new IOException("The journal key in " + file + " is malformed.");
+		}
+		else {
+			bytes = new byte[16];
+			new SecureRandom().nextBytes(bytes);
+			Files.write(file, bytes, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			try {
+				Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+			}
+			catch (UnsupportedOperationException e) {
+				logger.fine("Could not restrict the permissions of the journal key on this file system.");
+			}
+		}
+		return new SecretKeySpec(bytes, "AES");
+	}
+
+	/**
+	 * Appends a message as {@link #append(String, ByteBuffer)} does, but logs a failure rather than throwing it: the journal only
+	 * feeds history replay, so a message that cannot be kept must still be delivered. A failing journal warns at most once a minute.
+	 *
+	 * @param sender the nickname of the user who sent the message
+	 * @param text the UTF-8 text of the message, from its position to its limit, which is not changed
+	 * @return whether the message was kept
+	 */
+	public boolean tryAppend(String sender, ByteBuffer text) {
+		try {
+			append(sender, text);
+			return true;
+		}
+		catch (IOException e) {
+			long now = System.nanoTime();
+			long last = lastFailureWarning.get();
+			if ((last == 0 || now - last >= FAILURE_WARNING_INTERVAL) && lastFailureWarning.compareAndSet(last, now | 1))
+				logger.log(Level.WARNING, "A message could not be kept in the message journal, so it will not be replayed: ", e);
+			return false;
+		}
+	}
+
+	/**
+	 * See {@link #tryAppend(String, ByteBuffer)}.
+	 *
+	 * @param sender the nickname of the user who sent the message
+	 * @param text the UTF-8 text of the message
+	 * @return whether the message was kept
+	 */
+	public boolean tryAppend(String sender, byte[] text) {
+		return tryAppend(sender, ByteBuffer.wrap(text));
+	}
+
+	/**
+	 * Appends a message to the journal, starting a new segment if the current one is full.
+	 *
+	 * @param sender the nickname of the user who sent the message
+	 * @param text the UTF-8 text of the message
+	 * @throws IOException if a new segment could not be created
+	 */
+	public void append(String sender, byte[] text) throws IOException {
+		append(sender, ByteBuffer.wrap(text));
+	}
+
+	/**
+	 * Appends a message held in a buffer, such as the one it was decrypted into, without copying it first.
+	 *
+	 * @param sender the nickname of the user who sent the message
+	 * @param text the UTF-8 text of the message, from its position to its limit, which is not changed
+	 * @throws IOException if a new segment could not be created
+	 */
+	public void append(String sender, ByteBuffer text) throws IOException {
+		byte[] name = sender.getBytes(StandardCharsets.UTF_8);
+		int textLength = text.remaining();
+		int payloadLength = key != null ? NONCE_LENGTH + textLength + TAG_LENGTH : textLength;
+		int length = HEADER_LENGTH + name.length + payloadLength;
+		if (name.length > Short.MAX_VALUE || length > SEGMENT_SIZE) {
+			logger.warning("A message from " + sender + " is too large to be kept in the message journal.");
+			return;
+		}
+		lock.lock();
+		try {
+			long timestamp = Math.max(System.currentTimeMillis(), lastTimestamp);
+			Segment segment = segments.peekLast();
+			if (segment == null || segment.end + length > segment.buffer.capacity())
+				segment = roll(timestamp);
+
+			ByteBuffer out = segment.buffer.duplicate();
+			int offset = segment.end;
+			out.position(offset + 4);
+			out.putLong(timestamp).putShort((short) name.length).put(name);
+			if (key != null)
+				seal(out, name, timestamp, text);
+			else out.put(text.duplicate());
+			segment.buffer.putInt(offset, length - 4);
+
+			segment.end = offset + length;
+			segment.index(offset, timestamp);
+			nextSequence++;
+			lastTimestamp = timestamp;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the most recent messages, oldest first.
+	 *
+	 * @param count the largest number of messages to return
+	 * @param since the time, in milliseconds since the epoch, before which messages are left out
+	 * @return up to count messages sent at or after since
+	 */
+	public List<Entry> replay(int count, long since) {
+		List<Entry> entries = new ArrayList<Entry>();
+		lock.lock();
+		try {
+			Iterator<Segment> newestFirst = segments.descendingIterator();
+			while (entries.size() < count && newestFirst.hasNext()) {
+				Segment segment = newestFirst.next();
+				for (int i = segment.count - 1; i >= 0 && entries.size() < count; i--) {
+					if (segment.timestamps[i] < since)
+						break;
+					Entry entry = read(segment, segment.offsets[i]);
+					if (entry != null)
+						entries.add(entry);
+				}
+				if (segment.count > 0 && segment.timestamps[0] < since)
+					break;
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		Collections.reverse(entries);
+		return entries;
+	}
+
+	/**
+	 * @return the number of messages in the journal
+	 */
+	public long size() {
+		lock.lock();
+		try {
+			long size = 0;
+			for (Segment segment : segments)
+				size += segment.count;
+			return size;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Writes the newest segment out to disk. The segments are unmapped when they are garbage collected.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			Segment segment = segments.peekLast();
+			if (segment != null)
+				segment.buffer.force();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Segments
+	 */
+	private Segment roll(long now) throws IOException {
+		Segment previous = segments.peekLast();
+		if (previous != null)
+			previous.buffer.force();
+		Segment segment = map(nextSequence);
+		segments.add(segment);
+		retain(now);
+		return segment;
+	}
+
+	private Segment map(long base) throws IOException {
+		Path path = directory.resolve(String.format("%020d", base) + SUFFIX);
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			long size = channel.size() > 0 ? channel.size() : SEGMENT_SIZE;
+			return new Segment(base, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.min(size, Integer.MAX_VALUE)));
+		}
+	}
+
+	private void scan(Segment segment) {
+		ByteBuffer in = segment.buffer;
+		int offset = 0;
+		while (offset + HEADER_LENGTH <= in.capacity()) {
+			int length = in.getInt(offset);
+			if (length < HEADER_LENGTH - 4 || offset + 4 + length > in.capacity())
+				break;
+			segment.index(offset, in.getLong(offset + 4));
+			offset += 4 + length;
+		}
+		segment.end = offset;
+	}
+
+	//Deletes segments beyond the limit on their number or age, never the one being written
+	private void retain(long now) {
+		long oldest = now - TimeUnit.MINUTES.toMillis(RETENTION_MINUTES);
+		while (segments.size() > 1 && (segments.size() > MAX_SEGMENTS || segments.peekFirst().newest() < oldest)) {
+			Segment expired = segments.pollFirst();
+			try {
+				Files.deleteIfExists(expired.path);
+			}
+			catch (IOException e) {
+				logger.log(Level.WARNING, "Could not delete the expired journal segment " + expired.path + ": ", e);
+			}
+		}
+	}
+
+	/*
+	 * Records
+	 */
+	private Entry read(Segment segment, int offset) {
+		ByteBuffer in = segment.buffer.duplicate();
+		int length = in.getInt(offset);
+		in.position(offset + 4);
+		long timestamp = in.getLong();
+		byte[] name = new byte[in.getShort()];
+		in.get(name);
+		byte[] payload = new byte[length - (HEADER_LENGTH - 4) - name.length];
+		in.get(payload);
+		try {
+			byte[] text = key != null ? open(name, timestamp, payload) : payload;
+			return new Entry(new String(name, StandardCharsets.UTF_8), timestamp, text);
+		}
+		catch (GeneralSecurityException e) {
+			logger.warning("A message in journal segment " + segment.path + " failed authentication and was skipped.");
+			return null;
+		}
+	}
+
+	private void seal(ByteBuffer out, byte[] name, long timestamp, ByteBuffer text) throws IOException {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		random.nextBytes(nonce);
+		out.put(nonce);
+		try {
+			cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+			cipher.updateAAD(associatedData(name, timestamp));
+			cipher.doFinal(text.duplicate(), out);
+		}
+		catch (GeneralSecurityException e) {
+			throw new IOException("Could not encrypt a message for the journal.", e);
+		}
+	}
+
+	private byte[] open(byte[] name, long timestamp, byte[] payload) throws GeneralSecurityException {
+		cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, payload, 0, NONCE_LENGTH));
+		cipher.updateAAD(associatedData(name, timestamp));
+		return cipher.doFinal(payload, NONCE_LENGTH, payload.length - NONCE_LENGTH);
+	}
+
+	private static byte[] associatedData(byte[] name, long timestamp) {
+		return ByteBuffer.allocate(8 + name.length).putLong(timestamp).put(name).array();
+	}
+}
@@ -0,0 +1,304 @@
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.io.IOException;
+
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * An event-driven alternative to the thread-per-user model of {@link SecureChatServer}. Accepted sockets are spread across a small
+ * pool of event loops, each of which multiplexes its users over a single {@link Selector} with non-blocking reads and writes.
+ * The wire format is the same as the threaded server, so existing clients work unchanged.
+ *
+ * @author David Arena
+ */
+public class NioChatServer {
+	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+
+	/**
+	 * Accepts users on the given port forever, handing each one to an event loop in turn.
+	 *
+	 * @param port
+	 * @param eventLoops the number of event loop threads to start
+	 * @throws IOException
+	 */
+	public static void serve(int port, int eventLoops) throws IOException {
+		EventLoop[] loops = new EventLoop[Math.max(1, eventLoops)];
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "SecureChatServer-loop-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		ServerSocketChannel listener = ServerSocketChannel.open();
+		try {
+			listener.bind(new InetSocketAddress(port));
+			logger.info("Server initialized on port " + port + " with " + loops.length + " event loops.");
+			int next = 0;
+			while (true) {
+				SocketChannel channel = listener.accept();
+				channel.configureBlocking(false);
+				channel.setOption(StandardSocketOptions.TCP_NODELAY, OutboundQueue.TCP_NO_DELAY);
+				EventLoop loop = loops[next];
+				next = (next + 1) % loops.length;
+				loop.execute(new NioUser(channel, loop)::register);
+				logger.fine("Server accepted a socket.");
+			}
+		}
+		finally {
+			listener.close();
+			logger.info("Server has been closed.");
+		}
+	}
+
+	/**
+	 * A single-threaded loop that services the reads and writes of every user registered with its selector.
+	 * Work for the loop submitted from other threads is queued and run between selections, and work deferred by the loop itself is
+	 * run once the ready keys have been handled.
+	 */
+	static final class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+		private Thread thread;
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * Runs the task on this loop, immediately if called from the loop itself.
+		 * @param task
+		 */
+		void execute(Runnable task) {
+			if (Thread.currentThread() == thread) {
+				task.run();
+			}
+			else {
+				tasks.add(task);
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Runs the task on this loop after whatever it is currently doing, so that work queued while handling one selection, such as
+		 * the replies to several messages read at once, is done together.
+		 * @param task
+		 */
+		void later(Runnable task) {
+			tasks.add(task);
+			if (Thread.currentThread() != thread)
+				selector.wakeup();
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null)
+				task.run();
+		}
+
+		public void run() {
+			thread = Thread.currentThread();
+			while (true) {
+				try {
+					selector.select();
+					runTasks();
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						NioUser user = (NioUser) key.attachment();
+						if (key.isValid() && key.isReadable())
+							user.onReadable();
+						if (key.isValid() && key.isWritable())
+							user.flush();
+					}
+					runTasks();
+				}
+				catch (Exception e) {
+					logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " was encountered in an event loop: ", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * The state of a single user served by an event loop. Incoming bytes are decoded by a {@link FrameCodec.Decoder}, the same way as
+	 * the threaded handler. Outgoing messages are queued in an
+	 * {@link OutboundQueue} and written whenever the socket is writable, so callers on any thread never block on a slow user.
+	 */
+	static final class NioUser extends SecureChatServer.User {
+		private final SocketChannel channel;
+		private final EventLoop loop;
+		private final FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+		private final AtomicBoolean flushPending = new AtomicBoolean();
+		private SelectionKey key;
+		private boolean readingPaused;
+		private boolean awaitingClaim;
+
+		NioUser(SocketChannel channel, EventLoop loop) {
+			this.channel = channel;
+			this.loop = loop;
+		}
+
+		/**
+		 * Registers the user with its event loop's selector. Must be run on the event loop.
+		 */
+		void register() {
+			try {
+				key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+			}
+			catch (IOException e) {
+				logger.log(Level.SEVERE, "An IOException occurred while registering a user with an event loop: ", e);
+				try {
+					channel.close();
+				}
+				catch (IOException c) {
+					logger.severe("IOException occurred when attempting to close the socket of unnamed user.");
+				}
+				return;
+			}
+			onConnect();
+		}
+
+		/**
+		 * Reads whatever the socket has available and processes any messages it completes. A user whose outbound queue is congested
+		 * is not read from until it drains.
+		 */
+		void onReadable() {
+			if (getOutboundQueue().isCongested()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				readingPaused = true;
+				return;
+			}
+			try {
+				int read = channel.read(decoder.buffer());
+				if (read < 0) {
+					logger.fine("InputStream read error on user " + getNickname());
+					throw new SocketException("Invalid read on user's socket.");
+				}
+				ServerMetrics.read(read);
+				processFrames(decoder);
+			}
+			catch (Exception i) {
+				if (!(i instanceof SocketException))
+					logger.log(Level.SEVERE, "An exception of type " + i.getClass().toString() + " occurred in the user handler for user " + getNickname(), i);
+				disconnect();
+			}
+		}
+
+		/**
+		 * Runs the continuation of a nickname claim on the event loop once the cluster answers, rather than waiting for it on the loop.
+		 * Until then the user is not read from, and messages already read after the one that made the claim are left in the decoder,
+		 * so they are still handled in order. Must be run on the event loop.
+		 */
+		@Override
+		protected void awaitClaim(CompletableFuture<Boolean> claim, ClaimContinuation then) throws Exception {
+			if (claim.isDone()) {
+				then.run(claim.join());
+				return;
+			}
+			awaitingClaim = true;
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+			claim.thenAccept(granted -> loop.execute(() -> {
+				awaitingClaim = false;
+				try {
+					//A user who disconnected meanwhile still has the claim finished, which releases the nickname
+					then.run(granted);
+					if (!key.isValid())
+						return;
+					processFrames(decoder);
+					if (!awaitingClaim && !readingPaused && key.isValid())
+						key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+				}
+				catch (Exception i) {
+					if (!(i instanceof SocketException))
+						logger.log(Level.SEVERE, "An exception of type " + i.getClass().toString() + " occurred in the user handler for user " + getNickname(), i);
+					disconnect();
+				}
+			}));
+		}
+
+		@Override
+		protected boolean isAwaitingClaim() {
+			return awaitingClaim;
+		}
+
+		/**
+		 * Queues a frame for the user and asks the event loop to write it out, along with any other frames queued before it gets to.
+		 */
+		@Override
+		protected void queue(ByteBuffer[] frame, TypeOfData type, boolean pooled) {
+			int length = 0;
+			for (ByteBuffer part : frame)
+				length += part.remaining();
+			if (!getOutboundQueue().offer(frame, type, pooled)) {
+				evict();
+				return;
+			}
+			ServerMetrics.sent(type, length);
+			if (flushPending.compareAndSet(false, true))
+				OutboundQueue.afterLinger(() -> loop.later(this::flush));
+		}
+
+		/**
+		 * Disconnects the user on their event loop.
+		 */
+		@Override
+		protected void evict() {
+			loop.execute(super::evict);
+		}
+
+		/**
+		 * Writes as much of the queued output as the socket accepts, a batch of frames at a time, waiting for the socket to become
+		 * writable if some is left over. Reading resumes once a congested user's queue has drained. Must be run on the event loop.
+		 */
+		void flush() {
+			flushPending.set(false);
+			if (key == null || !key.isValid())
+				return;
+			try {
+				OutboundQueue outbound = getOutboundQueue();
+				ByteBuffer[] batch;
+				while ((batch = outbound.peekBatch()) != null) {
+					channel.write(batch);
+					ServerMetrics.socketWrite();
+					outbound.removeWritten();
+					if (OutboundQueue.hasRemaining(batch))
+						break;
+				}
+				int ops = batch == null ? key.interestOps() & ~SelectionKey.OP_WRITE : key.interestOps() | SelectionKey.OP_WRITE;
+				if (readingPaused && outbound.isDrained()) {
+					if (!awaitingClaim)
+						ops |= SelectionKey.OP_READ;
+					readingPaused = false;
+				}
+				key.interestOps(ops);
+			}
+			catch (IOException i) {
+				logger.severe("An IOException occurred while writing bytes to the user's socket.");
+				disconnect();
+			}
+		}
+
+		@Override
+		protected void close() throws IOException {
+			if (key != null)
+				key.cancel();
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,363 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The frames waiting to be written to a single user, bounded by the number of bytes they hold. Any thread may add frames;
+ * only the user's writer removes them. A frame may be made of several buffers, such as a header and a message shared with other
+ * users. A frame whose buffer came from the {@link BufferPool} is returned to the pool once it has been written or discarded.
+ *
+ * The writer takes every frame queued so far, up to securechat.outbound.batchBytes (64 KiB by default), as one batch and writes it
+ * with a single gathering write, so a user receiving a burst of broadcasts costs one system call rather than one for each frame.
+ * Frames are written as soon as a writer is free to take them unless securechat.outbound.lingerMicros is set, in which case the
+ * writer waits up to that long after the first frame is queued for others to join the batch. That bounds the latency coalescing
+ * adds. Since frames are coalesced here, Nagle's algorithm is disabled on users' sockets unless securechat.tcpNoDelay is false.
+ *
+ * Once the queue holds more than the high watermark, the user is congested and the server stops reading from them until the
+ * queue drains below the low watermark. If the queue would grow past its limit, the user is a slow consumer and the configured
+ * policy applies: "disconnect" (the default) evicts the user, while "drop-oldest" discards the oldest chat and server messages
+ * that have not started to be written. Frames of any other type are never dropped, since the user cannot recover from missing one.
+ *
+ * Configured by the system properties securechat.outbound.lowWatermark, securechat.outbound.highWatermark, securechat.outbound.limit
+ * (in bytes; 64 KiB, 256 KiB and 1 MiB by default), securechat.outbound.policy, securechat.outbound.batchBytes,
+ * securechat.outbound.lingerMicros and securechat.tcpNoDelay.
+ *
+ * @author David Arena
+ */
+public class OutboundQueue {
+	public static final int LOW_WATERMARK = Integer.getInteger("securechat.outbound.lowWatermark", 64 * 1024);
+	public static final int HIGH_WATERMARK = Integer.getInteger("securechat.outbound.highWatermark", 256 * 1024);
+	public static final int LIMIT = Integer.getInteger("securechat.outbound.limit", 1024 * 1024);
+	public static final boolean DROP_OLDEST = "drop-oldest".equalsIgnoreCase(System.getProperty("securechat.outbound.policy"));
+	public static final int BATCH_BYTES = Integer.getInteger("securechat.outbound.batchBytes", 64 * 1024);
+	public static final long LINGER_MICROS = Long.getLong("securechat.outbound.lingerMicros", 0);
+	public static final boolean TCP_NO_DELAY = !"false".equalsIgnoreCase(System.getProperty("securechat.tcpNoDelay"));
+
+	//The most buffers a gathering write passes to the kernel at once on Linux (IOV_MAX)
+	private static final int MAX_BUFFERS = 1024;
+	private static final ScheduledExecutorService lingerTimer = LINGER_MICROS > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "SecureChatServer-linger");
+		thread.setDaemon(true);
+		return thread;
+	}) : null;
+
+	private static final LongAdder totalDropped = new LongAdder();
+	private static final LongAdder totalEvicted = new LongAdder();
+
+	private final ArrayDeque<Frame> frames = new ArrayDeque<Frame>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition drained = lock.newCondition();
+	private long bytes;
+	private long dropped;
+	private int started;
+	private boolean evicted;
+
+	private static class Frame {
+		final ByteBuffer[] parts;
+		final int length;
+		final boolean droppable;
+		final boolean pooled;
+
+		Frame(ByteBuffer[] parts, TypeOfData type, boolean pooled) {
+			int length = 0;
+			for (ByteBuffer part : parts)
+				length += part.remaining();
+			this.parts = parts;
+			this.length = length;
+			this.droppable = type == TypeOfData.MESSAGE || type == TypeOfData.SERVER_MESSAGE;
+			this.pooled = pooled;
+		}
+
+		void release() {
+			if (pooled)
+				BufferPool.release(parts[parts.length - 1]);
+		}
+	}
+
+	/**
+	 * Adds a frame held in a single buffer that did not come from the pool. See {@link #offer(ByteBuffer[], TypeOfData, boolean)}.
+	 * @param data the frame, ready to be written
+	 * @param type the type of the frame
+	 * @return false if the user has to be evicted
+	 */
+	public boolean offer(ByteBuffer data, TypeOfData type) {
+		return offer(new ByteBuffer[] {data}, type, false);
+	}
+
+	/**
+	 * Adds a frame to the end of the queue, applying the slow consumer policy if the queue is full.
+	 *
+	 * @param parts the buffers making up the frame, ready to be written in order
+	 * @param type the type of the frame
+	 * @param pooled whether the last buffer came from the {@link BufferPool}, in which case the queue takes ownership of it
+	 * @return false if the user has to be evicted, in which case the frame was not queued. This is only returned once;
+	 * the queue is emptied and any frame offered afterwards is discarded.
+	 */
+	public boolean offer(ByteBuffer[] parts, TypeOfData type, boolean pooled) {
+		Frame frame = new Frame(parts, type, pooled);
+		lock.lock();
+		try {
+			if (evicted) {
+				frame.release();
+				return true;
+			}
+			if (bytes + frame.length > LIMIT && frames.size() > 0) {
+				if (DROP_OLDEST)
+					dropOldest(bytes + frame.length - LIMIT);
+				if (bytes + frame.length > LIMIT) {
+					evicted = true;
+					frame.release();
+					clear();
+					drained.signalAll();
+					totalEvicted.increment();
+					return false;
+				}
+			}
+			frames.add(frame);
+			bytes += frame.length;
+			return true;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards every queued frame, except those in the batch the writer has taken, which it still owns until it calls
+	 * {@link #removeWritten()}.
+	 */
+	private void clear() {
+		bytes = 0;
+		Iterator<Frame> it = frames.iterator();
+		for (int i = 0; it.hasNext(); i++) {
+			Frame frame = it.next();
+			if (i < started)
+				bytes += frame.length;
+			else {
+				it.remove();
+				frame.release();
+			}
+		}
+	}
+
+	private void dropOldest(long excess) {
+		Iterator<Frame> it = frames.iterator();
+		for (int i = 0; excess > 0 && it.hasNext(); i++) {
+			Frame frame = it.next();
+			if (frame.droppable && i >= started) {
+				it.remove();
+				frame.release();
+				bytes -= frame.length;
+				excess -= frame.length;
+				dropped++;
+				totalDropped.increment();
+			}
+		}
+	}
+
+	/**
+	 * Returns the buffers of the oldest frames without removing them, so that a writer can write them with a single gathering
+	 * write, in several parts if the socket does not take them all at once. The batch holds at least one frame, and further frames
+	 * while it holds less than the batch size. Once a frame has been taken in a batch, it can no longer be dropped, and it is
+	 * taken again in the next batch until {@link #removeWritten()} removes it.
+	 * @return the buffers of the batch in the order they are to be written, or null if the queue is empty
+	 */
+	public ByteBuffer[] peekBatch() {
+		lock.lock();
+		try {
+			if (frames.isEmpty())
+				return null;
+			int count = 0, parts = 0;
+			long length = 0;
+			for (Frame frame : frames) {
+				if (count > 0 && (length + frame.length > BATCH_BYTES || parts + frame.parts.length > MAX_BUFFERS))
+					break;
+				count++;
+				parts += frame.parts.length;
+				length += frame.length;
+			}
+			ByteBuffer[] batch = new ByteBuffer[parts];
+			Iterator<Frame> it = frames.iterator();
+			for (int i = 0, part = 0; i < count; i++) {
+				ByteBuffer[] frame = it.next().parts;
+				System.arraycopy(frame, 0, batch, part, frame.length);
+				part += frame.length;
+			}
+			started = Math.max(started, count);
+			return batch;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the frames of the last batch that have been completely written, returning their buffers to the pool.
+	 * @return the number of frames removed
+	 */
+	public int removeWritten() {
+		lock.lock();
+		try {
+			int removed = 0;
+			Frame frame;
+			while (started > 0 && (frame = frames.peek()) != null && !hasRemaining(frame.parts)) {
+				frames.poll();
+				frame.release();
+				bytes -= frame.length;
+				started--;
+				removed++;
+			}
+			if (removed > 0 && bytes < LOW_WATERMARK)
+				drained.signalAll();
+			return removed;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Runs a task that writes out the queue once frames have had a chance to gather: at once, or after securechat.outbound.lingerMicros
+	 * on a timer thread if it is set.
+	 * @param task
+	 */
+	public static void afterLinger(Runnable task) {
+		if (lingerTimer == null)
+			task.run();
+		else lingerTimer.schedule(task, LINGER_MICROS, TimeUnit.MICROSECONDS);
+	}
+
+	/**
+	 * Discards every frame still queued, returning their buffers to the pool, and any frame offered from now on. Called once the user
+	 * has disconnected. Frames in a batch the writer has taken are left for it to remove.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			evicted = true;
+			clear();
+			drained.signalAll();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the queue holds more than the high watermark, and reading from the user should pause
+	 */
+	public boolean isCongested() {
+		lock.lock();
+		try {
+			return bytes > HIGH_WATERMARK;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the queue holds less than the low watermark, and reading from a congested user can resume
+	 */
+	public boolean isDrained() {
+		lock.lock();
+		try {
+			return bytes < LOW_WATERMARK;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * If the user is congested, waits until the queue drains below the low watermark or the timeout passes.
+	 * @param timeout in milliseconds
+	 * @return true if the queue is not congested
+	 * @throws InterruptedException
+	 */
+	public boolean awaitUncongested(long timeout) throws InterruptedException {
+		lock.lock();
+		try {
+			if (bytes <= HIGH_WATERMARK)
+				return true;
+			long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+			while (bytes >= LOW_WATERMARK && nanos > 0)
+				nanos = drained.awaitNanos(nanos);
+			return bytes < LOW_WATERMARK;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of frames waiting to be written
+	 */
+	public int depth() {
+		lock.lock();
+		try {
+			return frames.size();
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes waiting to be written
+	 */
+	public long bytes() {
+		lock.lock();
+		try {
+			return bytes;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of frames this queue has dropped
+	 */
+	public long dropped() {
+		lock.lock();
+		try {
+			return dropped;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param frame
+	 * @return true if any buffer of the frame has bytes left to write
+	 */
+	public static boolean hasRemaining(ByteBuffer[] frame) {
+		for (ByteBuffer part : frame) {
+			if (part.hasRemaining())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of frames dropped by every queue
+	 */
+	public static long totalDropped() {
+		return totalDropped.sum();
+	}
+
+	/**
+	 * @return the number of users evicted as slow consumers
+	 */
+	public static long totalEvicted() {
+		return totalEvicted.sum();
+	}
+}
@@ -0,0 +1,166 @@
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how often each type of message is accepted, from a single connection and from every connection together, so that one client
+ * sending as fast as its socket allows cannot make the server spend its time decrypting and broadcasting for it. Every limit is a token
+ * bucket with a rate and a burst, checked before a message's contents are even copied out of the connection's buffer; a message over
+ * either limit is discarded. A token is only taken from either bucket once both have one, so a message the server is too busy for
+ * does not count against the connection's own limit.
+ *
+ * The buckets are kept as a theoretical arrival time (the generic cell rate algorithm), so checking one is a read of the clock and a
+ * single compare-and-set, with no timer refilling them.
+ *
+ * Each connection's limit for a type is set by securechat.limit.&lt;type&gt;.rate (messages per second) and
+ * securechat.limit.&lt;type&gt;.burst, and the limit for every connection together by securechat.limit.global.&lt;type&gt;.rate and
+ * .burst, where &lt;type&gt; is the name of the {@link TypeOfData} in lower case, such as dh_pub_key. A rate of 0 removes the limit.
+ * Setting securechat.limit=false removes every limit.
+ *
+ * @author David Arena
+ */
+public class RateLimiter {
+	/**
+	 * Whether messages are rate limited.
+	 */
+	public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("securechat.limit"));
+
+	private static final TypeOfData[] TYPES = TypeOfData.values();
+	//Rate and burst for each connection, then for the whole server, by type; anything not listed is unlimited
+	private static final Object[][] DEFAULTS = {
+		{TypeOfData.MESSAGE, 20, 40, 0, 0},
+		{TypeOfData.DH_PUB_KEY, 1, 4, 200, 400},
+		{TypeOfData.NICKNAME, 1, 3, 500, 1000},
+		{TypeOfData.SESSION_MODE, 1, 3, 0, 0},
+		{TypeOfData.COMPRESSION, 1, 3, 0, 0},
+		{TypeOfData.SESSION_TICKET, 1, 3, 0, 0},
+		{TypeOfData.RESUME, 1, 3, 500, 1000},
+		{TypeOfData.JOIN_ROOM, 2, 5, 0, 0},
+		{TypeOfData.LEAVE_ROOM, 2, 5, 0, 0},
+		{TypeOfData.LIST_ROOMS, 2, 5, 0, 0},
+	};
+
+	private static final double[] rates = new double[TYPES.length];
+	private static final int[] bursts = new int[TYPES.length];
+	private static final Bucket[] global = new Bucket[TYPES.length];
+
+	static {
+		double[] globalRates = new double[TYPES.length];
+		int[] globalBursts = new int[TYPES.length];
+		for (Object[] limit : DEFAULTS) {
+			int type = ((TypeOfData) limit[0]).ordinal();
+			rates[type] = (Integer) limit[1];
+			bursts[type] = (Integer) limit[2];
+			globalRates[type] = (Integer) limit[3];
+			globalBursts[type] = (Integer) limit[4];
+		}
+		for (TypeOfData type : TYPES) {
+			int i = type.ordinal();
+			String name = type.name().toLowerCase(Locale.ROOT);
+			rates[i] = Double.parseDouble(System.getProperty("securechat.limit." + name + ".rate", Double.toString(rates[i])));
+			bursts[i] = Integer.getInteger("securechat.limit." + name + ".burst", bursts[i]);
+			double globalRate = Double.parseDouble(System.getProperty("securechat.limit.global." + name + ".rate", Double.toString(globalRates[i])));
+			int globalBurst = Integer.getInteger("securechat.limit.global." + name + ".burst", globalBursts[i]);
+			if (ENABLED && globalRate > 0)
+				global[i] = new Bucket(globalRate, globalBurst);
+		}
+	}
+
+	/**
+	 * The limit a message was over, if any.
+	 */
+	public enum Limit {
+		NONE, CONNECTION, SERVER
+	}
+
+	private final Bucket[] buckets = new Bucket[TYPES.length];
+	private Limit limited = Limit.NONE;
+
+	/**
+	 * Constructs the limits for a single connection.
+	 */
+	public RateLimiter() {
+		for (int i = 0; i < TYPES.length; i++) {
+			if (ENABLED && rates[i] > 0)
+				buckets[i] = new Bucket(rates[i], bursts[i]);
+		}
+	}
+
+	/**
+	 * Takes a token for a message of the given type from the connection's bucket and the server's, or from neither if either is empty.
+	 * Only the connection's own reader may call this, as the connection's bucket is checked before it is taken from.
+	 * @param type
+	 * @return NONE if the message may be processed, or the limit it is over if it should be discarded
+	 */
+	public Limit tryAcquire(TypeOfData type) {
+		Bucket own = buckets[type.ordinal()];
+		Bucket shared = global[type.ordinal()];
+		if (own == null && shared == null)
+			return Limit.NONE;
+		long now = System.nanoTime();
+		if (own != null && !own.canAcquire(now))
+			return Limit.CONNECTION;
+		if (shared != null && !shared.tryAcquire(now))
+			return Limit.SERVER;
+		if (own != null && !own.tryAcquire(now)) {
+			if (shared != null)
+				shared.refund();
+			return Limit.CONNECTION;
+		}
+		limited = Limit.NONE;
+		return Limit.NONE;
+	}
+
+	/**
+	 * Records that a message was discarded, and says whether the sender should be told. They are told once for each run of messages
+	 * discarded for the same limit, so telling them does not cost as much as the messages would have.
+	 * @param limit the limit the message was over
+	 * @return true if this is the first message discarded for that limit since one was accepted or another limit was hit
+	 */
+	public boolean reject(Limit limit) {
+		if (limited == limit)
+			return false;
+		limited = limit;
+		return true;
+	}
+
+	/**
+	 * A token bucket, held as the time at which it would next be full.
+	 */
+	private static final class Bucket {
+		private final long interval;
+		private final long tolerance;
+		private final AtomicLong full = new AtomicLong(Long.MIN_VALUE);
+
+		Bucket(double rate, int burst) {
+			interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+			tolerance = interval * Math.max(1, burst);
+		}
+
+		boolean canAcquire(long now) {
+			return next(full.get(), now) - now <= tolerance;
+		}
+
+		boolean tryAcquire(long now) {
+			while (true) {
+				long current = full.get();
+				long next = next(current, now);
+				if (next - now > tolerance)
+					return false;
+				if (full.compareAndSet(current, next))
+					return true;
+			}
+		}
+
+		/**
+		 * Returns a token taken by {@link #tryAcquire(long)} for a message that was discarded after all.
+		 */
+		void refund() {
+			full.addAndGet(-interval);
+		}
+
+		private long next(long current, long now) {
+			return (current == Long.MIN_VALUE || current - now < 0 ? now : current) + interval;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A stress test of the {@link UserRegistry}, to be run whenever the registry changes. Several threads churn through users that join,
+ * claim and rename between a small set of contended nicknames, and leave, while another thread iterates the registry as broadcasts do.
+ *
+ * Every claim the registry grants is checked against an independent record of who holds each nickname: no nickname may be granted
+ * to a second user while the first still holds it, and the registry must name the user that was just granted a nickname as its
+ * holder. Once the churn ends the registry must be empty, with every nickname released. The run prints its counts and exits with
+ * status 1 if any check failed.
+ *
+ * Configured by the system properties securechat.stress.threads (8), securechat.stress.cycles (join to leave cycles per thread,
+ * 200000), securechat.stress.names (contended nicknames, 50) and securechat.stress.renames (claims per cycle, 3).
+ *
+ * @author David Arena
+ */
+public class RegistryStress {
+	private static final int THREADS = Integer.getInteger("securechat.stress.threads", 8);
+	private static final int CYCLES = Integer.getInteger("securechat.stress.cycles", 200000);
+	private static final int NAMES = Integer.getInteger("securechat.stress.names", 50);
+	private static final int RENAMES = Integer.getInteger("securechat.stress.renames", 3);
+
+	private static final UserRegistry registry = new UserRegistry();
+	//Who holds each nickname according to the claims the registry granted
+	private static final ConcurrentHashMap<String, StressUser> holders = new ConcurrentHashMap<String, StressUser>();
+	private static final LongAdder claims = new LongAdder();
+	private static final LongAdder refusals = new LongAdder();
+	private static final LongAdder iterated = new LongAdder();
+	private static final LongAdder violations = new LongAdder();
+
+	/**
+	 * A user with no connection, whose nickname is set the way a handler sets it after the registry grants a claim.
+	 */
+	private static class StressUser extends SecureChatServer.User {
+		private volatile String nickname;
+
+		@Override
+		public String getNickname() {
+			return nickname;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.out.println("Churning " + THREADS + " threads through " + CYCLES + " cycles each, over " + NAMES + " nicknames");
+		CountDownLatch done = new CountDownLatch(THREADS);
+		long start = System.nanoTime();
+		for (int i = 0; i < THREADS; i++) {
+			Thread thread = new Thread(() -> {
+				try {
+					churn();
+				}
+				finally {
+					done.countDown();
+				}
+			}, "RegistryStress-churn-" + i);
+			thread.start();
+		}
+		Thread iterator = new Thread(() -> {
+			while (done.getCount() > 0) {
+				for (SecureChatServer.User user : registry) {
+					if (user == null)
+						violation("The registry iterated a null user.");
+					iterated.increment();
+				}
+			}
+		}, "RegistryStress-iterator");
+		iterator.start();
+		done.await();
+		iterator.join();
+		long elapsed = System.nanoTime() - start;
+
+		if (registry.size() != 0)
+			violation(registry.size() + " users are still registered after leaving.");
+		if (!registry.nicknames().isEmpty())
+			violation("Nicknames are still held after every user left: " + registry.nicknames());
+		System.out.printf("%d cycles in %d ms: %d claims granted, %d refused, %d users iterated, %d violations%n", (long) THREADS * CYCLES,
+				TimeUnit.NANOSECONDS.toMillis(elapsed), claims.sum(), refusals.sum(), iterated.sum(), violations.sum());
+		System.exit(violations.sum() == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Joins, renames and leaves for the configured number of cycles, checking every claim the registry grants.
+	 */
+	private static void churn() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int cycle = 0; cycle < CYCLES; cycle++) {
+			StressUser user = new StressUser();
+			registry.add(user);
+			for (int i = 0; i < RENAMES; i++) {
+				String requested = "user" + random.nextInt(NAMES);
+				if (requested.equals(user.nickname))
+					continue;
+				if (!registry.reserve(requested, user)) {
+					refusals.increment();
+					continue;
+				}
+				claims.increment();
+				StressUser previous = holders.putIfAbsent(requested, user);
+				if (previous != null)
+					violation("Nickname " + requested + " was granted while another user held it.");
+				if (registry.get(requested) != user)
+					violation("Nickname " + requested + " was granted, but the registry names another holder.");
+				//A rename claims the new nickname before releasing the old one, as the server does
+				String old = user.nickname;
+				user.nickname = requested;
+				if (old != null) {
+					holders.remove(old, user);
+					registry.release(old, user);
+				}
+			}
+			if (user.nickname != null)
+				holders.remove(user.nickname, user);
+			registry.remove(user);
+		}
+	}
+
+	private static void violation(String message) {
+		violations.increment();
+		if (violations.sum() <= 10)
+			System.out.println(message);
+	}
+}
@@ -1,373 +1,1103 @@
-import java.util.ArrayList;
-
-import java.util.logging.Level;
-import java.util.logging.Logger;
-import java.util.logging.Handler;
-import java.util.logging.FileHandler;
-import java.util.logging.Formatter;
-import java.util.logging.SimpleFormatter;
-import java.util.logging.XMLFormatter;
-import java.io.UnsupportedEncodingException;
-import java.io.IOException;
-
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.BindException;
-
-/**
- * An enumerated type where each member corresponds to the ordinal of the first byte of an incoming message.
- * These represent the different types of communication the user has with the server (e.g. sending a regular message, requesting public keys,
- * indicating that the user is going to disconnect, etc.)
- */
-enum TypeOfData {
-	MESSAGE, DH_PUB_KEY, NICKNAME, SERVER_MESSAGE
-}
-
-/**
- * The SecureChatServer implementation. It currently contains most of the features necessary, such as encryption and nicknames.
- * 
- * @author David Arena
- */
-public class SecureChatServer {
-	private static ArrayList<User> users = new ArrayList<User>();
-	private static int port;
-	private static String directory;
-	private static String title;
-	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
-	
-	/**
-	 * The main method used to initialize a server on the desired port. A directory to which logs are sent is also specified.
-	 * args[0] is the desired port, args[1] is the desired directory to which chat logs are sent
-	 * 
-	 * @param args
-	 * @throws Exception
-	 */
-	public static void main(String args[]) throws Exception {	
-		/**
-		 * Temporary arguments so the program does not need to be run from the command line
-		 */
-		args = new String[3];
-		args[0] = "6800";
-		args[1] = "C:/Users/David/Documents/logger"; //please change this in your implementation
-		args[2] = "Test SecureChatServer";		
-		boolean argsInit = false;
-		Handler txtFileHandler = null;
-		Handler xmlFileHandler = null;
-		Formatter txtFormatter = new SimpleFormatter();
-		Formatter xmlFormatter = new XMLFormatter();
-		
-		try {
-			if (args.length != 3) {
-				logger.severe("Port and log directory were not specified.");
-				throw new IllegalArgumentException("bad_args");
-			}
-			else argsInit = true;
-		}
-		catch (IllegalArgumentException i) {
-			System.out.println(i.getMessage());
-		}
-		
-		try {
-			txtFileHandler = new FileHandler(args[1]);
-			txtFileHandler.setFormatter(txtFormatter);
-			xmlFileHandler = new FileHandler(args[1] + ".xml");
-			xmlFileHandler.setFormatter(xmlFormatter);
-			
-			logger.addHandler(txtFileHandler);
-			logger.addHandler(xmlFileHandler);
-			
-			txtFileHandler.setLevel(Level.ALL);
-			xmlFileHandler.setLevel(Level.ALL);
-			logger.setLevel(Level.ALL);
-			
-			logger.config("Loggers successfully configured.");
-		}
-		catch (IOException i) {
-			logger.log(Level.SEVERE, "An IOException occurred while creating the FileHandler: ", i);
-		}
-		
-		
-		if (argsInit == true) {
-			port = Integer.parseInt(args[0]);
-			directory = args[1];
-			title = args[2];
-			
-			try {
-				ServerSocket listener = new ServerSocket(port);
-				logger.info("Server initialized on port " + port + ".");
-				try {
-					while (true) {
-						new User(listener.accept()).start();
-						logger.fine("Server accepted a socket.");
-					}
-				}
-				catch (Exception e) {
-					logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " was encountered in a user thread: ", e);
-				}
-				finally {
-					listener.close();
-					logger.info("Server has been closed.");
-				}
-			}
-			catch (BindException b) {
-				logger.severe("Couldn't create the server, another service is using the specified port. (" + port + ")");
-			}
-		}
-	}
-	
-	 /**
-	  *  A multithreaded handler class that manages the incoming and outgoing messages of each user.
-	  */
-	  
-	public static class User extends Thread
-	{
-		private SecureConnection secureCon = new SecureConnection();
-		private Socket socket;
-		private String nickname;
-		private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
-		
-		private boolean alive;
-		private boolean nicknameSet;
-		
-		private byte[] data;
-		private byte[] input;
-		private byte[] pubKey;
-		
-		private TypeOfData type;
-		
-		/**
-		 * Constructs a handler with the given client socket.
-		 * @param mySocket
-		 */
-				
-		public User(Socket mySocket){this.socket = mySocket;}
-		
-		/**
-		 * A getter method for the user's nickname. If a nickname for a user is not received by the server, the default nickname is "no_nickname".
-		 * @return nickname
-		 */
-		public String getNickname(){return nickname;}
-
-		/**
-		 * Begins a new thread for a user. Continually looks for new messages from the user, then sends them out to all other users currently connected.
-		 * Upon user disconnect, removes the user from the connected users list and closes the user's socket.
-		 */
-		public void run() {
-			nicknameSet = false;
-			nickname = "no_nickname";
-			alive = true;
-			try {
-				users.add(this);
-				try {
-					this.send(("TITLE" + title).getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
-					logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
-				}
-				catch (Exception e){
-					if (e instanceof UnsupportedEncodingException)
-						logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8 when sending title.");
-					else logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " occurred in the user handler for user " + nickname, e);
-				}
-				while (true) {
-					try {
-						int temp = socket.getInputStream().read();
-						if (temp < 0) {
-							logger.fine("InputStream read error on user " + nickname);
-							throw new SocketException("Invalid read on user's socket.");
-						}
-						type = TypeOfData.values()[temp];
-						input = new byte[1000];
-						data = new byte[socket.getInputStream().read(input)];
-					
-						for (int i = 0; i < data.length; i++) {
-							if (input[i] < 0) {
-								logger.fine("InputStream read error on user " + nickname);
-								throw new SocketException("Invalid read on user's socket");
-							}
-							data[i] = input[i];
-						}
-						
-						switch (type) {
-							case MESSAGE: 
-								if (nicknameSet) {
-									logger.info("Message received from user " + nickname + ".");
-									data = secureCon.decrypt(data);
-									for (User u : users) {
-										try {
-											u.send(u.secureCon.encrypt((nickname + ',' + new String(data, "UTF-8")).getBytes("UTF-8")), TypeOfData.MESSAGE);
-										}
-										catch (UnsupportedEncodingException e) {
-											logger.warning("UnsupportedEncodingException occurred when converting between byte[] and String using UTF-8.");
-										}
-										u.send(u.secureCon.encrypt(data), TypeOfData.MESSAGE);
-									}
-								}
-								else {
-									try {
-										this.send("NO_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
-										logger.warning("User with no nickname attempted to send a message.");
-									}
-									catch (UnsupportedEncodingException u) {
-										logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
-									}
-								}
-								break;
-								
-							case DH_PUB_KEY: 
-								if (nicknameSet) {
-									logger.fine("User " + nickname + " issued a public key request.");
-									pubKey = secureCon.getPublicKey(data);
-									this.send(pubKey, TypeOfData.DH_PUB_KEY);
-									secureCon.processOtherPubKey(data);
-								}
-								else {
-									logger.warning("Unnamed user attempted to issue a public key request.");
-								}
-								break;
-								
-							case NICKNAME: 
-								if (!nicknameSet) {
-									if (verifyNickname(new String(data))) {
-										nickname = new String(data);
-										logger.info("User " + nickname + " joined the server.");
-										try {
-											for (User u : users) {
-												u.send((nickname + " joined the server.").getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
-											}
-										}
-										catch (UnsupportedEncodingException u) {
-											logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
-										}
-										nicknameSet = true;
-									}
-									else {
-										try {
-											logger.fine("Unnamed user attempted to set invalid nickname.");
-											this.send("INVALID_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
-										}
-										catch (UnsupportedEncodingException u) {
-											logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
-										}
-									}
-								}
-								else {
-									if (verifyNickname(new String(data))) {
-										logger.fine("User " + nickname + " updated their nickname to " + new String(data) + ".");
-										try {
-											for (User u : users) {
-												u.send((nickname + " updated their nickname to " + new String (data) + ".").getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
-											}
-										}
-										catch (UnsupportedEncodingException u) {
-											logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
-										}
-										logger.info("User " + nickname + " updated their nickname to " + new String(data) + ".");
-										nickname = new String(data);
-									}
-									else {
-										try {
-											logger.fine(nickname + " attempted to change their nickname to an invalid nickname.");
-											this.send("INVALID_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
-										}
-										catch (UnsupportedEncodingException u) {
-											logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
-										}
-									}
-								}
-								break;
-								
-							default: logger.warning("The server received a malformed message.");
-						}
-					}
-					catch (Exception i) {
-						if (i instanceof SocketException) {
-							this.alive = false;
-							users.remove(this);
-							if (nicknameSet) {
-								logger.info("User " + nickname + " disconnected from the server.");
-								try {
-									socket.close();
-								}
-								catch (IOException e) {
-									logger.severe("IOException occurred when attempting to close the socket of user " + nickname);
-								}	
-							}
-							else {
-								logger.info("Unnamed user disconnected from the server.");
-								try {
-									socket.close();
-								}
-								catch (IOException e) {
-									logger.severe("IOException occurred when attempting to close the socket of unnamed user.");
-								}	
-							}
-						}
-						else logger.log(Level.SEVERE, "An exception of type " + i.getClass().toString() + " occurred in the user handler for user " + nickname, i);
-						return;
-					}	
-				}
-			}
-			finally {
-				if (alive) {
-					users.remove(this);
-					if (nicknameSet) {
-						logger.info("User " + nickname + " disconnected from the server.");
-						try {
-							socket.close();
-						}
-						catch (IOException e) {
-							logger.severe("IOException occurred when attempting to close the socket of user " + nickname);
-						}	
-					}
-					else {
-						logger.info("Unnamed user disconnected from the server.");
-						try {
-							socket.close();
-						}
-						catch (IOException e) {
-							logger.severe("IOException occurred when attempting to close the socket of unnamed user.");
-						}	
-					}
-				}
-			}
-		}
-		
-		/**
-		 * Sends a byte array over the output stream of the user's socket. The first byte of the array represents the type of the message,
-		 * and the remaining bytes represent the contents of the message.
-		 * 
-		 * @param data
-		 * @param type
-		 * @throws Exception
-		 */
-		public void send(byte[] data, TypeOfData type) throws Exception {
-	        if (data.length > 1000) {
-	        	logger.fine("Attempted to send a message larger than the buffer.");
-	        	throw new Exception("Message was too long to be sent.");
-	        }
-
-	        try {
-		        this.socket.getOutputStream().write(type.ordinal());
-		        this.socket.getOutputStream().write(data);
-		        this.socket.getOutputStream().flush();
-	        }
-	        catch (IOException i) {
-	        	logger.severe("An IOException occurred while writing bytes to the user's socket.");
-	        }
-		}
-		
-		/**
-		 * A helper method to verify that a user's submitted nickname is not a reserved nickname or is not currently being used by another user.
-		 * @param nickname
-		 */
-		public boolean verifyNickname(String nickname) {
-			for (User u : users) {
-				if (nickname.equals(u.getNickname()))
-					return false;
-			}
-			if (nickname.equalsIgnoreCase("SERVER") || nickname.equalsIgnoreCase("ERROR") || nickname.equals(""))
-				return false;
-			else return true;
-		}
-	}
-}
\ No newline at end of file
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.zip.DataFormatException;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.logging.Handler;
+import java.util.logging.FileHandler;
+import java.util.logging.StreamHandler;
+import java.util.logging.Formatter;
+import java.util.logging.SimpleFormatter;
+import java.util.logging.XMLFormatter;
+import java.io.UnsupportedEncodingException;
+import java.io.FileOutputStream;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.BindException;
+
+/**
+ * The SecureChatServer implementation. It currently contains most of the features necessary, such as encryption and nicknames.
+ * 
+ * @author David Arena
+ */
+public class SecureChatServer {
+	private static final UserRegistry users = new UserRegistry();
+	private static int port;
+	private static String directory;
+	private static String title;
+	private static MessageJournal journal;
+	private static ClusterNode cluster;
+	private static final int REPLAY_COUNT = Integer.getInteger("securechat.journal.replayCount", 50);
+	private static final long REPLAY_MINUTES = Long.getLong("securechat.journal.replayMinutes", 0);
+	private static final SecureRandom random = new SecureRandom();
+	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+	
+	/**
+	 * The main method used to initialize a server on the desired port. A directory to which logs are sent is also specified.
+	 * args[0] is the desired port, args[1] is the desired directory to which chat logs are sent
+	 * The system property securechat.mode selects how connections are handled: "thread" (the default) runs one thread per user,
+	 * while "nio" serves every user from a small pool of event loops, sized by securechat.eventLoops (defaults to the number of cores).
+	 * In the threaded mode, securechat.threads selects whether handlers run on "platform" threads (the default) or "virtual" threads.
+	 * The system property securechat.port overrides args[0], and the securechat.cluster properties join the server to others (see {@link ClusterNode}).
+	 * Metrics are published through JMX and, when securechat.metrics.port is set, over HTTP (see {@link ServerMetrics}).
+	 * 
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String args[]) throws Exception {	
+		/**
+		 * Temporary arguments so the program does not need to be run from the command line
+		 */
+		args = new String[3];
+		args[0] = "6800";
+		args[1] = "C:/Users/David/Documents/logger"; //please change this in your implementation
+		args[2] = "Test SecureChatServer";		
+		boolean argsInit = false;
+		Handler txtFileHandler = null;
+		Handler xmlFileHandler = null;
+		Formatter txtFormatter = new SimpleFormatter();
+		Formatter xmlFormatter = new XMLFormatter();
+		
+		try {
+			if (args.length != 3) {
+				logger.severe("Port and log directory were not specified.");
+				throw new IllegalArgumentException("bad_args");
+			}
+			else argsInit = true;
+		}
+		catch (IllegalArgumentException i) {
+			System.out.println(i.getMessage());
+		}
+		
+		try {
+			txtFileHandler = openLogFile(args[1]);
+			txtFileHandler.setFormatter(txtFormatter);
+			xmlFileHandler = openLogFile(args[1] + ".xml");
+			xmlFileHandler.setFormatter(xmlFormatter);
+			
+			logger.addHandler(txtFileHandler);
+			logger.addHandler(xmlFileHandler);
+			
+			txtFileHandler.setLevel(Level.ALL);
+			xmlFileHandler.setLevel(Level.ALL);
+			logger.setLevel(Level.ALL);
+			
+			logger.config("Loggers successfully configured.");
+		}
+		catch (IOException i) {
+			logger.log(Level.SEVERE, "An IOException occurred while creating the FileHandler: ", i);
+		}
+		if (AsyncLogHandler.ENABLED)
+			AsyncLogHandler.install(logger);
+		
+		
+		if (argsInit == true) {
+			port = Integer.getInteger("securechat.port", Integer.parseInt(args[0]));
+			directory = args[1];
+			title = args[2];
+			logger.info("Cipher provider: " + SecureConnection.getCipherProvider());
+			logger.info("Diffie-Hellman pool: " + DHKeyPool.describe());
+			openJournal();
+			cluster = ClusterNode.start(users, journal);
+			ServerMetrics.install(users);
+			
+			try {
+				if ("nio".equalsIgnoreCase(System.getProperty("securechat.mode"))) {
+					NioChatServer.serve(port, Integer.getInteger("securechat.eventLoops", Runtime.getRuntime().availableProcessors()));
+				}
+				else {
+					//Sockets are accepted through a channel, so that users' frames can be written from direct buffers
+					ServerSocketChannel listener = ServerSocketChannel.open();
+					listener.bind(new InetSocketAddress(port));
+					logger.info("Server initialized on port " + port + ".");
+					try {
+						while (true) {
+							Socket socket = listener.accept().socket();
+							socket.setTcpNoDelay(OutboundQueue.TCP_NO_DELAY);
+							Handlers.executor.execute(new User(socket));
+							logger.fine("Server accepted a socket.");
+						}
+					}
+					catch (Exception e) {
+						logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " was encountered in a user thread: ", e);
+					}
+					finally {
+						listener.close();
+						Handlers.executor.shutdown();
+						logger.info("Server has been closed.");
+					}
+				}
+			}
+			catch (BindException b) {
+				logger.severe("Couldn't create the server, another service is using the specified port. (" + port + ")");
+			}
+		}
+	}
+	
+	/**
+	 * Opens the message journal in the directory given by securechat.journal.dir, or next to the log files by default.
+	 * Setting securechat.journal=false, or failing to open the journal, leaves the server without history.
+	 */
+	private static void openJournal() {
+		if ("false".equalsIgnoreCase(System.getProperty("securechat.journal")))
+			return;
+		try {
+			journal = MessageJournal.open(Paths.get(System.getProperty("securechat.journal.dir", directory + ".journal")));
+			Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "SecureChatServer-journal-shutdown"));
+		}
+		catch (IOException | InvalidPathException e) {
+			logger.log(Level.WARNING, "The message journal could not be opened, so users will not be sent recent messages: ", e);
+		}
+	}
+	
+	/**
+	 * Opens a log file. With asynchronous logging the file is written through a plain stream, so that the log writer decides when to
+	 * flush it rather than the handler flushing after every record.
+	 * @param path
+	 * @return the handler for the file
+	 * @throws IOException
+	 */
+	private static Handler openLogFile(String path) throws IOException {
+		if (AsyncLogHandler.ENABLED)
+			return new StreamHandler(new FileOutputStream(path), new SimpleFormatter());
+		return new FileHandler(path);
+	}
+	
+	/**
+	 * Creates the executor that runs a thread for each user handler. Virtual threads are used when requested and supported by the
+	 * running Java version, otherwise platform threads are used.
+	 * 
+	 * @param threads either "platform" or "virtual"
+	 * @return the executor for user handlers
+	 */
+	private static ExecutorService newHandlerExecutor(String threads) {
+		if ("virtual".equalsIgnoreCase(threads)) {
+			try {
+				ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+				logger.config("User handlers will run on virtual threads.");
+				return executor;
+			}
+			catch (ReflectiveOperationException e) {
+				logger.warning("Virtual threads are not supported by this Java version, user handlers will run on platform threads.");
+			}
+		}
+		return Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Holds the executor for user handlers, which is created once, when the threaded mode first uses it, from securechat.threads.
+	 */
+	private static final class Handlers {
+		static final ExecutorService executor = newHandlerExecutor(System.getProperty("securechat.threads", "platform"));
+	}
+
+	 /**
+	  *  A handler class that manages the incoming and outgoing messages of each user. In the default mode each handler runs on its own thread;
+	  *  subclasses may instead feed messages to {@link #process(TypeOfData, byte[])} from an event loop (see {@link NioChatServer}).
+	  */
+	  
+	public static class User implements Runnable
+	{
+		private SecureConnection secureCon = new SecureConnection();
+		private Socket socket;
+		private final ReentrantLock writeLock = new ReentrantLock();
+		private final Broadcaster.Outbound outbound = new Broadcaster.Outbound();
+		private final OutboundQueue outboundQueue = new OutboundQueue();
+		private final AtomicBoolean writing = new AtomicBoolean();
+		private final RateLimiter limits = new RateLimiter();
+		private MessageCompressor compression;
+		private volatile String nickname;
+		private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+		
+		private final AtomicBoolean alive = new AtomicBoolean();
+		private boolean nicknameSet;
+		private boolean historyPending;
+		private boolean ticketsRequested;
+		private volatile ChatRoom room;
+		
+		private byte[] pubKey;
+		private byte[] senderPrefix;
+		private String prefixNickname;
+		private WritableByteChannel channel;
+		
+		/**
+		 * Constructs a handler with the given client socket.
+		 * @param mySocket
+		 */
+				
+		public User(Socket mySocket){this.socket = mySocket;}
+		
+		/**
+		 * Constructs a handler without a socket, for subclasses that manage their own transport.
+		 */
+		protected User(){}
+		
+		/**
+		 * A getter method for the user's nickname. If a nickname for a user is not received by the server, the default nickname is "no_nickname".
+		 * @return nickname
+		 */
+		public String getNickname(){return nickname;}
+
+		/**
+		 * Continually looks for new messages from the user, then sends them out to all other users currently connected.
+		 * Upon user disconnect, removes the user from the connected users list and closes the user's socket.
+		 */
+		public void run() {
+			try {
+				onConnect();
+				FrameCodec.Decoder decoder = new FrameCodec.Decoder();
+				while (true) {
+					while (!outboundQueue.awaitUncongested(1000)) {
+						if (!alive.get())
+							return;
+					}
+					ByteBuffer buffer = decoder.buffer();
+					int read = socket.getInputStream().read(buffer.array(), buffer.position(), buffer.remaining());
+					if (read < 0) {
+						logger.fine("InputStream read error on user " + nickname);
+						throw new SocketException("Invalid read on user's socket.");
+					}
+					buffer.position(buffer.position() + read);
+					ServerMetrics.read(read);
+					processFrames(decoder);
+				}
+			}
+			catch (Exception i) {
+				if (!(i instanceof SocketException))
+					logger.log(Level.SEVERE, "An exception of type " + i.getClass().toString() + " occurred in the user handler for user " + nickname, i);
+			}
+			finally {
+				disconnect();
+			}
+		}
+		
+		/**
+		 * Registers a newly connected user and sends them the server title.
+		 */
+		protected void onConnect() {
+			nicknameSet = false;
+			nickname = "no_nickname";
+			alive.set(true);
+			users.add(this);
+			ServerMetrics.connectionAccepted();
+			room = ChatRoom.join(ChatRoom.LOBBY, this);
+			try {
+				this.send(("TITLE" + title).getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+			}
+			catch (Exception e){
+				if (e instanceof UnsupportedEncodingException)
+					logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8 when sending title.");
+				else logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " occurred in the user handler for user " + nickname, e);
+			}
+		}
+		
+		/**
+		 * Processes every complete message the decoder has received so far, discarding any over the user's or the server's rate limits
+		 * (see {@link RateLimiter}) before their contents are read. Messages after one that is waiting on a nickname claim are left
+		 * in the decoder until the claim completes.
+		 * @param decoder
+		 * @throws Exception
+		 */
+		protected void processFrames(FrameCodec.Decoder decoder) throws Exception {
+			while (!isAwaitingClaim() && decoder.next()) {
+				ServerMetrics.received(decoder.type());
+				RateLimiter.Limit limit = limits.tryAcquire(decoder.type());
+				if (limit != RateLimiter.Limit.NONE)
+					rateLimited(decoder.type(), limit);
+				//Framed messages are decrypted straight out of the decoder's buffer
+				else if (decoder.type() == TypeOfData.MESSAGE && !decoder.isLegacy())
+					receiveMessage(ByteBuffer.wrap(decoder.payload(), decoder.payloadOffset(), decoder.payloadLength()));
+				else process(decoder.type(), readPayload(decoder));
+			}
+		}
+		
+		/**
+		 * Discards a message that was over a rate limit. The user is told which with a server message, RATE_LIMITED for their own
+		 * limit or SERVER_BUSY for the limit on every user together, once until a message of theirs is accepted again.
+		 * @param type
+		 * @param limit
+		 * @throws Exception
+		 */
+		private void rateLimited(TypeOfData type, RateLimiter.Limit limit) throws Exception {
+			ServerMetrics.rateLimited(type, limit);
+			if (limits.reject(limit)) {
+				if (limit == RateLimiter.Limit.SERVER) {
+					logger.log(Level.FINE, "User {0} was refused a {1} message over the server's rate limit.", new Object[] {nickname, type});
+					this.send("SERVER_BUSY".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+				}
+				else {
+					logger.log(Level.FINE, "User {0} exceeded the rate limit for {1} messages.", new Object[] {nickname, type});
+					this.send("RATE_LIMITED".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+				}
+			}
+		}
+		
+		/**
+		 * Copies the contents of the decoder's current message. Legacy messages containing bytes outside of 0-127 are rejected,
+		 * as they always have been; framed messages may contain any bytes.
+		 * @param decoder
+		 * @return the message contents
+		 * @throws SocketException if a legacy message contained invalid bytes
+		 */
+		protected byte[] readPayload(FrameCodec.Decoder decoder) throws SocketException {
+			byte[] input = decoder.payload();
+			int offset = decoder.payloadOffset();
+			byte[] data = new byte[decoder.payloadLength()];
+			for (int i = 0; i < data.length; i++) {
+				if (decoder.isLegacy() && input[offset + i] < 0) {
+					logger.fine("InputStream read error on user " + nickname);
+					throw new SocketException("Invalid read on user's socket");
+				}
+				data[i] = input[offset + i];
+			}
+			return data;
+		}
+		
+		/**
+		 * Handles a single message received from the user.
+		 * @param type
+		 * @param data
+		 * @throws Exception
+		 */
+		protected void process(TypeOfData type, byte[] data) throws Exception {
+			switch (type) {
+				case MESSAGE: 
+					receiveMessage(ByteBuffer.wrap(data));
+					break;
+					
+				case DH_PUB_KEY: 
+					if (nicknameSet) {
+						logger.log(Level.FINE, "User {0} issued a public key request.", nickname);
+						long start = ServerMetrics.now();
+						pubKey = secureCon.getPublicKey(data);
+						this.send(pubKey, TypeOfData.DH_PUB_KEY);
+						secureCon.processOtherPubKey(data);
+						ServerMetrics.handshake(start);
+						issueTicket();
+						if (historyPending) {
+							historyPending = false;
+							replayHistory();
+						}
+					}
+					else {
+						logger.warning("Unnamed user attempted to issue a public key request.");
+					}
+					break;
+					
+				case NICKNAME: 
+					if (!nicknameSet) {
+						claimNickname(new String(data), granted -> {
+							if (granted) {
+								logger.log(Level.INFO, "User {0} joined the server.", nickname);
+								try {
+									broadcastNotice(null, (nickname + " joined the server.").getBytes("UTF-8"));
+								}
+								catch (UnsupportedEncodingException u) {
+									logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
+								}
+								nicknameSet = true;
+								if (secureCon.hasKeys())
+									replayHistory();
+								else historyPending = true;
+							}
+							else {
+								try {
+									logger.fine("Unnamed user attempted to set invalid nickname.");
+									this.send("INVALID_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+								}
+								catch (UnsupportedEncodingException u) {
+									logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
+								}
+							}
+						});
+					}
+					else {
+						String previous = nickname;
+						claimNickname(new String(data), granted -> {
+							if (granted) {
+								logger.log(Level.FINE, "User {0} updated their nickname to {1}.", new Object[] {previous, nickname});
+								try {
+									broadcastNotice(null, (previous + " updated their nickname to " + nickname + ".").getBytes("UTF-8"));
+								}
+								catch (UnsupportedEncodingException u) {
+									logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
+								}
+								if (secureCon.hasKeys())
+									issueTicket();
+								logger.log(Level.INFO, "User {0} updated their nickname to {1}.", new Object[] {previous, nickname});
+							}
+							else {
+								try {
+									logger.log(Level.FINE, "{0} attempted to change their nickname to an invalid nickname.", nickname);
+									this.send("INVALID_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+								}
+								catch (UnsupportedEncodingException u) {
+									logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
+								}
+							}
+						});
+					}
+					break;
+					
+				case SESSION_MODE:
+					if (nicknameSet && "AEAD".equals(new String(data, "UTF-8")) && secureCon.canEnableSessionMode()) {
+						writeLock.lock();
+						try {
+							this.send(data, TypeOfData.SESSION_MODE);
+							secureCon.enableSessionMode(true);
+						}
+						finally {
+							writeLock.unlock();
+						}
+						logger.log(Level.FINE, "User {0} switched to AEAD session mode.", nickname);
+					}
+					else {
+						logger.log(Level.FINE, "User {0} requested an unavailable session mode.", nickname);
+						this.send("INVALID_SESSION_MODE".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+					}
+					break;
+					
+				case COMPRESSION:
+					String mode = new String(data, "UTF-8");
+					if (MessageCompressor.ENABLED && (MessageCompressor.DEFLATE.equals(mode) || MessageCompressor.NONE.equals(mode))) {
+						writeLock.lock();
+						try {
+							this.send(data, TypeOfData.COMPRESSION);
+							if (MessageCompressor.NONE.equals(mode) && compression != null) {
+								compression.close();
+								compression = null;
+							}
+							else if (MessageCompressor.DEFLATE.equals(mode) && compression == null)
+								compression = new MessageCompressor();
+						}
+						finally {
+							writeLock.unlock();
+						}
+						logger.log(Level.FINE, "User {0} set their compression mode to {1}.", new Object[] {nickname, mode});
+					}
+					else {
+						logger.log(Level.FINE, "User {0} requested an unavailable compression mode.", nickname);
+						this.send("INVALID_COMPRESSION".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+					}
+					break;
+					
+				case SESSION_TICKET:
+					if (SessionTickets.ENABLED) {
+						ticketsRequested = true;
+						if (nicknameSet && secureCon.hasKeys())
+							issueTicket();
+					}
+					else this.send("INVALID_TICKET".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+					break;
+					
+				case RESUME:
+					resume(data);
+					break;
+					
+				case JOIN_ROOM:
+				case LEAVE_ROOM:
+					String name = type == TypeOfData.LEAVE_ROOM ? ChatRoom.LOBBY : new String(data, "UTF-8");
+					if (!nicknameSet) {
+						logger.warning("Unnamed user attempted to change rooms.");
+						this.send("NO_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+					}
+					else if (!ChatRoom.verifyName(name)) {
+						logger.log(Level.FINE, "User {0} attempted to join a room with an invalid name.", nickname);
+						this.send("INVALID_ROOM".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+					}
+					else moveTo(name);
+					break;
+					
+				case LIST_ROOMS:
+					this.send(ChatRoom.list().getBytes("UTF-8"), TypeOfData.LIST_ROOMS);
+					break;
+					
+				default: logger.warning("The server received a malformed message.");
+		}
+		}
+		
+		/**
+		 * Sends the user a ticket with which to resume their connection later, if tickets are enabled and the user asked for them.
+		 * @throws Exception
+		 */
+		private void issueTicket() throws Exception {
+			if (SessionTickets.ENABLED && ticketsRequested)
+				this.sendEncrypted(SessionTickets.issue(nickname, secureCon.getResumptionSecret()), TypeOfData.SESSION_TICKET);
+		}
+		
+		/**
+		 * Resumes an earlier connection of the user's with a ticket, in place of setting a nickname and exchanging keys. The ticket
+		 * is revoked before the user takes their nickname back, so it cannot be used twice, even by two connections at once.
+		 * @param data the user's nonce, their binder and the ticket
+		 * @throws Exception
+		 */
+		private void resume(byte[] data) throws Exception {
+			int nonceLength = SessionTickets.NONCE_LENGTH, binderLength = 32;
+			SessionTickets.Ticket ticket = null;
+			byte[] clientNonce = null;
+			if (SessionTickets.ENABLED && !nicknameSet && !secureCon.hasKeys() && data.length > nonceLength + binderLength) {
+				clientNonce = Arrays.copyOfRange(data, 0, nonceLength);
+				byte[] binder = Arrays.copyOfRange(data, nonceLength, nonceLength + binderLength);
+				byte[] bytes = Arrays.copyOfRange(data, nonceLength + binderLength, data.length);
+				ticket = SessionTickets.open(bytes);
+				if (ticket != null && !MessageDigest.isEqual(binder, SecureConnection.getResumptionBinder(ticket.getSecret(), bytes, clientNonce)))
+					ticket = null;
+			}
+			if (ticket == null || !SessionTickets.revoke(ticket)) {
+				logger.fine("User attempted to resume with an invalid ticket.");
+				ServerMetrics.resumed(false);
+				this.send("INVALID_TICKET".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+				return;
+			}
+			byte[] secret = ticket.getSecret(), nonce = clientNonce;
+			claimNickname(ticket.getNickname(), granted -> {
+				if (granted)
+					finishResume(secret, nonce);
+				else {
+					logger.fine("User attempted to resume with a nickname that is in use.");
+					ServerMetrics.resumed(false);
+					this.send("INVALID_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+				}
+			});
+		}
+		
+		/**
+		 * Completes a resumption once the user holds the ticket's nickname again: keys are derived from the ticket's secret and a
+		 * nonce from each end, and the user is sent the server's nonce and a new ticket.
+		 * @param secret the resumption secret held in the ticket
+		 * @param clientNonce
+		 * @throws Exception
+		 */
+		private void finishResume(byte[] secret, byte[] clientNonce) throws Exception {
+			int nonceLength = SessionTickets.NONCE_LENGTH;
+			byte[] serverNonce = new byte[nonceLength];
+			random.nextBytes(serverNonce);
+			secureCon.resume(secret, clientNonce, serverNonce);
+			writeLock.lock();
+			try {
+				byte[] sealed = secureCon.encrypt(SessionTickets.issue(nickname, secureCon.getResumptionSecret()));
+				byte[] reply = Arrays.copyOf(serverNonce, nonceLength + sealed.length);
+				System.arraycopy(sealed, 0, reply, nonceLength, sealed.length);
+				this.send(reply, TypeOfData.RESUME);
+			}
+			finally {
+				writeLock.unlock();
+			}
+			ticketsRequested = true;
+			ServerMetrics.resumed(true);
+			logger.log(Level.INFO, "User {0} resumed their session.", nickname);
+			broadcastNotice(null, (nickname + " joined the server.").getBytes("UTF-8"));
+			nicknameSet = true;
+			replayHistory();
+		}
+		
+		/**
+		 * Decrypts a chat message from the user and broadcasts it to their room as "nickname,text". The text is decrypted into a pooled
+		 * buffer after the user's nickname, and that buffer is shared by every recipient's encryption, so the message is never copied.
+		 * @param encrypted the message as received
+		 * @throws Exception
+		 */
+		protected void receiveMessage(ByteBuffer encrypted) throws Exception {
+			if (!nicknameSet) {
+				try {
+					this.send("NO_NICKNAME".getBytes("UTF-8"), TypeOfData.SERVER_MESSAGE);
+					logger.warning("User with no nickname attempted to send a message.");
+				}
+				catch (UnsupportedEncodingException u) {
+					logger.warning("UnsupportedEncodingException occurred when converting String to byte[] using UTF-8.");
+				}
+				return;
+			}
+			logger.log(Level.INFO, "Message received from user {0}.", nickname);
+			byte[] sender = senderPrefix();
+			BufferPool.Shared message = new BufferPool.Shared(sender.length + encrypted.remaining());
+			try {
+				ByteBuffer buffer = message.buffer();
+				buffer.put(sender);
+				long start = ServerMetrics.now();
+				secureCon.decrypt(encrypted, buffer);
+				ServerMetrics.decrypted(start);
+				buffer.flip();
+				if (compression != null)
+					message = decompress(message, sender);
+				ByteBuffer text = message.contents();
+				text.position(text.position() + sender.length);
+				if (cluster != null) {
+					byte[] copy = new byte[text.remaining()];
+					text.duplicate().get(copy);
+					cluster.relayChat(room.getName(), nickname, copy);
+				}
+				//Only the lobby's history is replayed, so messages in other rooms are not kept
+				if (journal != null && room.isLobby())
+					journal.tryAppend(nickname, text);
+			}
+			catch (Exception e) {
+				message.release();
+				throw e;
+			}
+			room.broadcastEncrypted(message, TypeOfData.MESSAGE);
+		}
+		
+		/**
+		 * Restores a message the user compressed, which was decrypted after their nickname. A stored message stays in the same buffer,
+		 * with the nickname moved forward over the byte that says it was stored; a deflated one is inflated into a new buffer.
+		 * @param message the nickname followed by the compressed message, released if a new buffer is returned
+		 * @param sender the nickname, as returned by {@link #senderPrefix()}
+		 * @return the nickname followed by the message
+		 * @throws DataFormatException if the message is corrupt or too long
+		 */
+		private BufferPool.Shared decompress(BufferPool.Shared message, byte[] sender) throws DataFormatException {
+			ByteBuffer buffer = message.buffer();
+			ByteBuffer body = message.contents();
+			body.position(sender.length);
+			if (!MessageCompressor.isDeflated(body)) {
+				ServerMetrics.compression(body.remaining(), body.remaining() - 1);
+				buffer.position(1);
+				buffer.duplicate().put(sender);
+				return message;
+			}
+			ByteBuffer text = compression.decompress(body);
+			BufferPool.Shared inflated = new BufferPool.Shared(sender.length + text.remaining());
+			inflated.buffer().put(sender).put(text).flip();
+			message.release();
+			ServerMetrics.compression(body.remaining(), text.remaining());
+			return inflated;
+		}
+		
+		/**
+		 * @return the user's nickname followed by a comma, as it precedes each of their messages, in UTF-8
+		 */
+		private byte[] senderPrefix() {
+			String current = nickname;
+			if (!current.equals(prefixNickname)) {
+				senderPrefix = (current + ',').getBytes(StandardCharsets.UTF_8);
+				prefixNickname = current;
+			}
+			return senderPrefix;
+		}
+		
+		/**
+		 * Sends a server message to every user in a room, or on the server, including those on other nodes of the cluster.
+		 * @param room the room, or null for every user
+		 * @param data
+		 */
+		private static void broadcastNotice(ChatRoom room, byte[] data) {
+			if (room != null)
+				room.broadcast(data, TypeOfData.SERVER_MESSAGE);
+			else Broadcaster.broadcast(users, data, TypeOfData.SERVER_MESSAGE);
+			if (cluster != null)
+				cluster.relayNotice(room != null ? room.getName() : null, TypeOfData.SERVER_MESSAGE, data);
+		}
+		
+		/**
+		 * Moves the user from their current room to the named one, telling the members of both, and confirms the move to the user.
+		 * @param name
+		 * @throws Exception
+		 */
+		private void moveTo(String name) throws Exception {
+			ChatRoom previous = room;
+			if (!previous.getName().equals(name)) {
+				room = ChatRoom.join(name, this);
+				ChatRoom.leave(previous, this);
+				//A user who disconnected while moving must not be left in the new room
+				if (!alive.get())
+					ChatRoom.leave(room, this);
+				broadcastNotice(previous, (nickname + " left the room.").getBytes("UTF-8"));
+				broadcastNotice(room, (nickname + " joined the room.").getBytes("UTF-8"));
+				logger.log(Level.FINE, "User {0} moved to room {1}.", new Object[] {nickname, name});
+			}
+			this.send(name.getBytes("UTF-8"), TypeOfData.JOIN_ROOM);
+		}
+		
+		/**
+		 * Sends the user the most recent messages in the journal, limited by securechat.journal.replayCount (50 by default) and
+		 * securechat.journal.replayMinutes (unlimited by default). They are queued like any other message, encrypted with the user's
+		 * keys, so they are held back until the user's first key exchange rather than being sent in the clear.
+		 */
+		private void replayHistory() {
+			if (journal == null || REPLAY_COUNT <= 0)
+				return;
+			long since = REPLAY_MINUTES > 0 ? System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(REPLAY_MINUTES) : Long.MIN_VALUE;
+			for (MessageJournal.Entry entry : journal.replay(REPLAY_COUNT, since)) {
+				byte[] sender = (entry.getSender() + ',').getBytes(StandardCharsets.UTF_8);
+				byte[] message = Arrays.copyOf(sender, sender.length + entry.getText().length);
+				System.arraycopy(entry.getText(), 0, message, sender.length, entry.getText().length);
+				enqueue(message, TypeOfData.MESSAGE, true);
+			}
+		}
+		
+		/**
+		 * Removes the user from the connected users list and closes their connection. Calling this more than once has no effect.
+		 */
+		protected void disconnect() {
+			if (!alive.compareAndSet(true, false))
+				return;
+			users.remove(this);
+			if (room != null)
+				ChatRoom.leave(room, this);
+			if (cluster != null && nicknameSet)
+				cluster.release(nickname);
+			if (nicknameSet) {
+				logger.log(Level.INFO, "User {0} disconnected from the server.", nickname);
+				try {
+					close();
+				}
+				catch (IOException e) {
+					logger.severe("IOException occurred when attempting to close the socket of user " + nickname);
+				}	
+			}
+			else {
+				logger.info("Unnamed user disconnected from the server.");
+				try {
+					close();
+				}
+				catch (IOException e) {
+					logger.severe("IOException occurred when attempting to close the socket of unnamed user.");
+				}	
+			}
+			outboundQueue.close();
+			secureCon.close();
+			writeLock.lock();
+			try {
+				if (compression != null)
+					compression.close();
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		
+		/**
+		 * Disconnects a user whose outbound queue has overflowed. May be called from any thread.
+		 */
+		protected void evict() {
+			logger.warning("User " + nickname + " was disconnected for not reading their messages quickly enough.");
+			disconnect();
+		}
+		
+		/**
+		 * @return the queue of frames waiting to be written to the user
+		 */
+		public OutboundQueue getOutboundQueue() {
+			return outboundQueue;
+		}
+		
+		/**
+		 * Closes the underlying connection of the user.
+		 * @throws IOException
+		 */
+		protected void close() throws IOException {
+			socket.close();
+		}
+		
+		/**
+		 * Sends a byte array over the output stream of the user's socket. The first byte of the array represents the type of the message,
+		 * and the remaining bytes represent the contents of the message.
+		 * 
+		 * @param data
+		 * @param type
+		 * @throws Exception
+		 */
+		public void send(byte[] data, TypeOfData type) throws Exception {
+	        if (data.length > FrameCodec.maxMessageLength()) {
+	        	logger.fine("Attempted to send a message larger than the buffer.");
+	        	throw new Exception("Message was too long to be sent.");
+	        }
+
+	        try {
+		        write(data, type);
+	        }
+	        catch (IOException i) {
+	        	logger.severe("An IOException occurred while writing bytes to the user's socket.");
+	        }
+		}
+		
+		/**
+		 * Queues a message to be sent to the user by the broadcast workers, after any message already queued for them.
+		 * 
+		 * @param data
+		 * @param type
+		 * @param encrypt whether to encrypt the message with the user's keys before sending it
+		 */
+		public void enqueue(byte[] data, TypeOfData type, boolean encrypt) {
+			outbound.execute(() -> {
+				if (!alive.get())
+					return;
+				try {
+					if (encrypt)
+						sendEncrypted(data, type);
+					else this.send(data, type);
+				}
+				catch (Exception e) {
+					logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " occurred while sending to user " + nickname, e);
+				}
+			});
+		}
+		
+		/**
+		 * Queues a message shared with other users, such as a broadcast, to be encrypted for this user by the broadcast workers.
+		 * The user holds a reference to the message until their copy has been encrypted.
+		 * 
+		 * @param message
+		 * @param type
+		 */
+		public void enqueue(BufferPool.Shared message, TypeOfData type) {
+			message.retain();
+			outbound.execute(() -> {
+				try {
+					if (alive.get())
+						sendEncrypted(message.contents(), type);
+				}
+				catch (Exception e) {
+					logger.log(Level.SEVERE, "An exception of type " + e.getClass().toString() + " occurred while sending to user " + nickname, e);
+				}
+				finally {
+					message.release();
+				}
+			});
+		}
+		
+		/**
+		 * Encrypts a message for the user and sends it. See {@link #sendEncrypted(ByteBuffer, TypeOfData)}.
+		 * 
+		 * @param data
+		 * @param type
+		 * @throws Exception
+		 */
+		public void sendEncrypted(byte[] data, TypeOfData type) throws Exception {
+			sendEncrypted(ByteBuffer.wrap(data), type);
+		}
+		
+		/**
+		 * Encrypts a message for the user straight into a pooled buffer holding its frame, and sends it. The write lock is held
+		 * throughout, so messages reach the connection in the order they were encrypted in, even when the user's encryption mode
+		 * changes between them.
+		 * 
+		 * @param data the message, which is read from its position to its limit without being changed
+		 * @param type
+		 * @throws Exception
+		 */
+		public void sendEncrypted(ByteBuffer data, TypeOfData type) throws Exception {
+			writeLock.lock();
+			try {
+				if (type == TypeOfData.MESSAGE && compression != null) {
+					int length = data.remaining();
+					data = compression.compress(data);
+					ServerMetrics.compression(data.remaining(), length);
+				}
+				//The frame is sized and filled under the connection's lock, so a key agreed meanwhile cannot change its length
+				ByteBuffer[] frame = new ByteBuffer[1];
+				long start = ServerMetrics.now();
+				int encrypted;
+				try {
+					encrypted = secureCon.encryptInto(data.duplicate(), length -> {
+						if (length > FrameCodec.maxMessageLength())
+							return null;
+						byte[] header = FrameCodec.header(type, length);
+						frame[0] = BufferPool.acquire(header.length + length);
+						return frame[0].put(header);
+					});
+				}
+				catch (Exception e) {
+					if (frame[0] != null)
+						BufferPool.release(frame[0]);
+					throw e;
+				}
+				if (encrypted < 0) {
+					logger.fine("Attempted to send a message larger than the buffer.");
+					throw new Exception("Message was too long to be sent.");
+				}
+				ServerMetrics.encrypted(start);
+				frame[0].flip();
+				queue(frame, type, true);
+			}
+			finally {
+				writeLock.unlock();
+			}
+		}
+		
+		/**
+		 * Queues a message to be written to the user's connection. The message is not copied: its frame header and contents are
+		 * written together with a gathering write.
+		 * 
+		 * @param data the message, which must not be modified afterwards
+		 * @param type
+		 * @throws IOException
+		 */
+		protected void write(byte[] data, TypeOfData type) throws IOException {
+			queue(new ByteBuffer[] {ByteBuffer.wrap(FrameCodec.header(type, data.length)), ByteBuffer.wrap(data)}, type, false);
+		}
+		
+		/**
+		 * Queues a frame to be written to the user's connection, evicting the user if their queue is full. A writer task drains the
+		 * queue whenever it holds frames, so the calling thread never blocks on a slow user. The lock keeps frames in the order their
+		 * senders hold it in.
+		 * 
+		 * @param frame the buffers making up the frame
+		 * @param type
+		 * @param pooled whether the last buffer came from the {@link BufferPool}, to be returned once it has been written
+		 */
+		protected void queue(ByteBuffer[] frame, TypeOfData type, boolean pooled) {
+			int length = 0;
+			for (ByteBuffer part : frame)
+				length += part.remaining();
+			writeLock.lock();
+			try {
+				if (!outboundQueue.offer(frame, type, pooled)) {
+					evict();
+					return;
+				}
+			}
+			finally {
+				writeLock.unlock();
+			}
+			ServerMetrics.sent(type, length);
+			if (writing.compareAndSet(false, true))
+				OutboundQueue.afterLinger(() -> Handlers.executor.execute(this::drainOutbound));
+		}
+		
+		/**
+		 * Writes queued frames to the user's socket until the queue is empty, as many at once as the queue batches together. Only one
+		 * drain runs at a time for each user.
+		 */
+		private void drainOutbound() {
+			try {
+				if (channel == null)
+					channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+				while (true) {
+					ByteBuffer[] batch;
+					while ((batch = outboundQueue.peekBatch()) != null) {
+						if (channel instanceof GatheringByteChannel) {
+							while (OutboundQueue.hasRemaining(batch)) {
+								((GatheringByteChannel) channel).write(batch);
+								ServerMetrics.socketWrite();
+							}
+						}
+						else {
+							for (ByteBuffer part : batch) {
+								while (part.hasRemaining()) {
+									channel.write(part);
+									ServerMetrics.socketWrite();
+								}
+							}
+						}
+						outboundQueue.removeWritten();
+					}
+					writing.set(false);
+					if (outboundQueue.depth() == 0 || !writing.compareAndSet(false, true))
+						return;
+				}
+			}
+			catch (IOException i) {
+				logger.severe("An IOException occurred while writing bytes to the user's socket.");
+				disconnect();
+			}
+		}
+		
+		/**
+		 * A helper method to verify that a user's submitted nickname is not a reserved nickname or is not currently being used by another user.
+		 * @param nickname
+		 */
+		public boolean verifyNickname(String nickname) {
+			if (users.isTaken(nickname))
+				return false;
+			if (nickname.equalsIgnoreCase("SERVER") || nickname.equalsIgnoreCase("ERROR") || nickname.equals(""))
+				return false;
+			else return true;
+		}
+		
+		/**
+		 * The rest of the handling of a message that claimed a nickname, run once the claim is decided.
+		 */
+		protected interface ClaimContinuation {
+			void run(boolean granted) throws Exception;
+		}
+		
+		/**
+		 * Claims a nickname for the user and releases the one they held before, then continues with whether the user now holds it.
+		 * The claim is atomic, so two users asking for the same nickname at once cannot both get it, on this server or, when
+		 * clustered, on any other. When another node owns the nickname, the continuation waits for its answer (see
+		 * {@link #awaitClaim(CompletableFuture, ClaimContinuation)}).
+		 * @param requested
+		 * @param then
+		 * @throws Exception
+		 */
+		private void claimNickname(String requested, ClaimContinuation then) throws Exception {
+			if (!verifyNickname(requested) || !users.reserve(requested, this)) {
+				then.run(false);
+				return;
+			}
+			CompletableFuture<Boolean> reserved = cluster != null ? cluster.reserve(requested) : CompletableFuture.completedFuture(true);
+			if (!reserved.isDone())
+				logger.log(Level.FINE, "Waiting for the cluster to reserve the nickname {0}.", requested);
+			awaitClaim(reserved, granted -> then.run(finishClaim(requested, granted)));
+		}
+		
+		/**
+		 * Runs the continuation of a nickname claim once the cluster has answered. The handler's own thread waits for the answer, as
+		 * nothing else is served by it; subclasses serving many users from one thread instead run the continuation when the answer
+		 * arrives, and read no further messages from the user until then.
+		 * @param claim completes with whether the cluster reserved the nickname
+		 * @param then
+		 * @throws Exception
+		 */
+		protected void awaitClaim(CompletableFuture<Boolean> claim, ClaimContinuation then) throws Exception {
+			then.run(claim.join());
+		}
+		
+		/**
+		 * @return true if a nickname claim is waiting on the cluster, and the user's later messages must wait for it
+		 */
+		protected boolean isAwaitingClaim() {
+			return false;
+		}
+		
+		/**
+		 * Takes the nickname the user reserved, or releases it if the cluster refused it.
+		 * @param requested
+		 * @param reserved whether the cluster reserved the nickname
+		 * @return true if the user now holds the nickname
+		 */
+		private boolean finishClaim(String requested, boolean reserved) {
+			if (!reserved) {
+				users.release(requested, this);
+				return false;
+			}
+			String previous = nickname;
+			boolean hadNickname = nicknameSet;
+			nickname = requested;
+			if (!previous.equals(requested)) {
+				users.release(previous, this);
+				if (cluster != null && hadNickname)
+					cluster.release(previous);
+			}
+			//A user who disconnected while claiming must not keep the nickname
+			if (!alive.get()) {
+				users.release(requested, this);
+				if (cluster != null)
+					cluster.release(requested);
+			}
+			return true;
+		}
+	}
+}
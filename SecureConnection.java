@@ -1,188 +1,747 @@
-/*
-    Copyright 2017 Gregory Conrad
-
-    This program is free software: you can redistribute it and/or modify
-    it under the terms of the GNU General Public License as published by
-    the Free Software Foundation, either version 3 of the License, or
-    (at your option) any later version.
-
-    This program is distributed in the hope that it will be useful,
-    but WITHOUT ANY WARRANTY; without even the implied warranty of
-    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
-    GNU General Public License for more details.
-
-    You should have received a copy of the GNU General Public License
-    along with this program.  If not, see <http://www.gnu.org/licenses/>.
-*/
-/**
- * @author Gregory Conrad
- * @date March 2017
- * @description An easy way to create a secure connection between two parties
- */
-
-import java.security.AlgorithmParameterGenerator;
-import java.security.AlgorithmParameters;
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.PublicKey;
-import java.security.spec.X509EncodedKeySpec;
-import java.util.ArrayList;
-import java.util.Properties;
-
-import javax.crypto.Cipher;
-import javax.crypto.KeyAgreement;
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import javax.crypto.spec.IvParameterSpec;
-
-import org.apache.commons.crypto.cipher.CryptoCipher;
-import org.apache.commons.crypto.cipher.CryptoCipherFactory;
-import org.apache.commons.crypto.cipher.CryptoCipherFactory.CipherProvider;
-import org.apache.commons.crypto.utils.Utils;
-
-public class SecureConnection {
-    /*
-     * Public Methods
-     */
-    //Encrypts a message with all of the keys
-    public byte[] encrypt(byte[] bytes) throws Exception {
-        for (String currKey : this.dhKeys) {
-            bytes = AES.encrypt(bytes, currKey.getBytes("ISO-8859-1"));
-        }
-        return bytes;
-    }
-
-    //Decrypts a message with all of the keys
-    public byte[] decrypt(byte[] bytes) throws Exception {
-        for (int i = this.dhKeys.size() - 1; i >= 0; --i) {
-            bytes = AES.decrypt(bytes, this.dhKeys.get(i).getBytes("ISO-8859-1"));
-        }
-        return bytes;
-    }
-
-    /*
-     * AES Encryption
-     */
-    private static class AES {
-        //The type of encryption to use
-        final static String type = "AES/CBC/PKCS5Padding";
-
-        //Encrypts data using AES
-        static byte[] encrypt(byte[] data, byte[] key) throws Exception {
-            Properties properties = new Properties();
-            properties.setProperty(CryptoCipherFactory.CLASSES_KEY,
-                    CipherProvider.JCE.getClassName());
-            CryptoCipher cipher = Utils.getCipherInstance(type, properties);
-            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"),
-                    new IvParameterSpec(key));
-            byte[] encoded = new byte[data.length + 2000];
-            int lengthOfEncoded = cipher.doFinal(data, 0, data.length, encoded, 0);
-            cipher.close();
-            return shorten(encoded, lengthOfEncoded);
-        }
-
-        //Decrypts data using AES
-        static byte[] decrypt(byte[] data, byte[] key) throws Exception {
-            Properties properties = new Properties();
-            properties.setProperty(CryptoCipherFactory.CLASSES_KEY,
-                    CipherProvider.JCE.getClassName());
-            CryptoCipher cipher = Utils.getCipherInstance(type, properties);
-            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"),
-                    new IvParameterSpec(key));
-            byte[] decoded = new byte[data.length + 2000];
-            int lengthOfDecoded = cipher.doFinal(data, 0, data.length, decoded, 0);
-            cipher.close();
-            return shorten(decoded, lengthOfDecoded);
-        }
-    }
-
-    //Shortens a byte array down to the specified length
-    private static byte[] shorten(byte[] data, int lengthOfData) {
-        byte[] returnVal = new byte[lengthOfData];
-        System.arraycopy(data, 0, returnVal, 0, returnVal.length);
-        return returnVal;
-    }
-
-    /*
-     * Key Management
-     *
-     * Some of the following code was adopted from:
-     *   http://docs.oracle.com/javase/7/docs/technotes/guides/security/crypto/CryptoSpec.html#DH2Ex
-     * Oracle and/or its affiliates own the rights to what they created of the following.
-     *
-     * Copyright (c) 1997, 2001, Oracle and/or its affiliates. All rights reserved.
-     *
-     * Redistribution and use in source and binary forms, with or without
-     * modification, are permitted provided that the following conditions
-     * are met:
-     *
-     *   - Redistributions of source code must retain the above copyright
-     *     notice, this list of conditions and the following disclaimer.
-     *
-     *   - Redistributions in binary form must reproduce the above copyright
-     *     notice, this list of conditions and the following disclaimer in the
-     *     documentation and/or other materials provided with the distribution.
-     *
-     *   - Neither the name of Oracle nor the names of its
-     *     contributors may be used to endorse or promote products derived
-     *     from this software without specific prior written permission.
-     *
-     * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
-     * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
-     * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
-     * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
-     * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
-     * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
-     * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
-     * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
-     * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
-     * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
-     * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
-     */
-    private ArrayList<String> dhKeys = new ArrayList<String>();
-    private KeyAgreement keyAgree;
-
-    public byte[] getPublicKey() throws Exception {
-        return this.getPublicKey(1024);
-    }
-
-    public byte[] getPublicKey(int size) throws Exception {
-        AlgorithmParameterGenerator paramGen = AlgorithmParameterGenerator.getInstance("DH");
-        paramGen.init(size);
-        AlgorithmParameters params = paramGen.generateParameters();
-        DHParameterSpec dhParamSpec = (DHParameterSpec) params.getParameterSpec(DHParameterSpec.class);
-        return this.getPublicKeyStep2(dhParamSpec);
-    }
-
-    public byte[] getPublicKey(byte[] otherPubKeyBytes) throws Exception {
-        KeyFactory keyFac = KeyFactory.getInstance("DH");
-        X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(otherPubKeyBytes);
-        PublicKey otherPubKey = keyFac.generatePublic(x509KeySpec);
-        DHParameterSpec dhParamSpec = ((DHPublicKey) otherPubKey).getParams();
-        return this.getPublicKeyStep2(dhParamSpec);
-    }
-
-    private byte[] getPublicKeyStep2(DHParameterSpec dhParamSpec) throws Exception {
-        KeyPairGenerator keyPairGen = KeyPairGenerator.getInstance("DH");
-        keyPairGen.initialize(dhParamSpec);
-        KeyPair keyPair = keyPairGen.generateKeyPair();
-        this.keyAgree = KeyAgreement.getInstance("DH");
-        this.keyAgree.init(keyPair.getPrivate());
-        return keyPair.getPublic().getEncoded();
-    }
-
-    private byte[] generateSecret(byte[] otherPubKeyBytes) throws Exception {
-        KeyFactory keyFac = KeyFactory.getInstance("DH");
-        X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(otherPubKeyBytes);
-        PublicKey otherPubKey = keyFac.generatePublic(x509KeySpec);
-        this.keyAgree.doPhase(otherPubKey, true);
-        return keyAgree.generateSecret();
-    }
-
-    //Called when the other end's public key is received
-    public void processOtherPubKey(byte[] otherPubKeyBytes) throws Exception {
-        this.dhKeys.add(new String(shorten(this.generateSecret(otherPubKeyBytes), 16), "ISO-8859-1"));
-    }
-}
\ No newline at end of file
+/*
+    Copyright 2017 Gregory Conrad
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+/**
+ * @author Gregory Conrad
+ * @date March 2017
+ * @description An easy way to create a secure connection between two parties
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.function.IntFunction;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.apache.commons.crypto.cipher.CryptoCipher;
+import org.apache.commons.crypto.cipher.CryptoCipherFactory;
+import org.apache.commons.crypto.cipher.CryptoCipherFactory.CipherProvider;
+import org.apache.commons.crypto.utils.Utils;
+
+public class SecureConnection {
+    /*
+     * Public Methods
+     */
+    //Encrypts a message with all of the keys
+    public byte[] encrypt(byte[] bytes) throws Exception {
+        this.lock.lock();
+        try {
+            byte[] out = new byte[this.encryptedLength(bytes.length)];
+            int length = this.encrypt(bytes, 0, bytes.length, out, 0);
+            return length == out.length ? out : shorten(out, length);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Decrypts a message with all of the keys
+    public byte[] decrypt(byte[] bytes) throws Exception {
+        this.lock.lock();
+        try {
+            byte[] out = this.scratch(2, bytes.length);
+            return shorten(out, this.decrypt(bytes, 0, bytes.length, out, 0));
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Encrypts a message with all of the keys into out, which must have room for encryptedLength(length) bytes
+    //Returns the length of the encrypted message
+    public int encrypt(byte[] in, int offset, int length, byte[] out, int outOffset) throws Exception {
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (this.session != null) {
+                return this.session.seal(in, offset, length, out, outOffset);
+            }
+            int last = this.keys.size() - 1;
+            if (last < 0) {
+                System.arraycopy(in, offset, out, outOffset, length);
+                return length;
+            }
+            for (int i = 0; i <= last; ++i) {
+                KeyContext key = this.keys.get(i);
+                if (i == last) {
+                    return key.encrypt(in, offset, length, out, outOffset);
+                }
+                byte[] next = this.scratch(i & 1, AES.encryptedLength(length));
+                length = key.encrypt(in, offset, length, next, 0);
+                in = next;
+                offset = 0;
+            }
+            throw new IllegalStateException();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Decrypts a message with all of the keys into out, which must have room for length bytes
+    //Returns the length of the decrypted message
+    public int decrypt(byte[] in, int offset, int length, byte[] out, int outOffset) throws Exception {
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (this.session != null) {
+                return this.session.open(in, offset, length, out, outOffset);
+            }
+            if (this.keys.isEmpty()) {
+                System.arraycopy(in, offset, out, outOffset, length);
+                return length;
+            }
+            for (int i = this.keys.size() - 1; i >= 0; --i) {
+                KeyContext key = this.keys.get(i);
+                if (i == 0) {
+                    return key.decrypt(in, offset, length, out, outOffset);
+                }
+                byte[] next = this.scratch(i & 1, length);
+                length = key.decrypt(in, offset, length, next, 0);
+                in = next;
+                offset = 0;
+            }
+            throw new IllegalStateException();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Encrypts the remaining bytes of in with all of the keys into out, which must have room for encryptedLength(in.remaining()) bytes
+    //Heap buffers are copied through arrays when the OpenSSL provider is in use, so direct buffers are faster with it
+    //Returns the length of the encrypted message
+    public int encrypt(ByteBuffer in, ByteBuffer out) throws Exception {
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (this.session != null) {
+                return this.session.seal(in, out);
+            }
+            int last = this.keys.size() - 1;
+            if (last < 0) {
+                int length = in.remaining();
+                out.put(in);
+                return length;
+            }
+            for (int i = 0; i <= last; ++i) {
+                KeyContext key = this.keys.get(i);
+                if (i == last) {
+                    return key.encrypt(in, out);
+                }
+                ByteBuffer next = this.scratchBuffer(i & 1, AES.encryptedLength(in.remaining()));
+                key.encrypt(in, next);
+                next.flip();
+                in = next;
+            }
+            throw new IllegalStateException();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Decrypts the remaining bytes of in with all of the keys into out, which must have room for in.remaining() bytes
+    //Heap buffers are copied through arrays when the OpenSSL provider is in use, so direct buffers are faster with it
+    //Returns the length of the decrypted message
+    public int decrypt(ByteBuffer in, ByteBuffer out) throws Exception {
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (this.session != null) {
+                return this.session.open(in, out);
+            }
+            if (this.keys.isEmpty()) {
+                int length = in.remaining();
+                out.put(in);
+                return length;
+            }
+            for (int i = this.keys.size() - 1; i >= 0; --i) {
+                KeyContext key = this.keys.get(i);
+                if (i == 0) {
+                    return key.decrypt(in, out);
+                }
+                ByteBuffer next = this.scratchBuffer(i & 1, in.remaining());
+                key.decrypt(in, next);
+                next.flip();
+                in = next;
+            }
+            throw new IllegalStateException();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Encrypts the remaining bytes of in with all of the keys into the buffer allocate returns for the encrypted length
+    //The length is worked out under the same lock as the encryption, so a key agreed in between cannot change it
+    //allocate may return null to refuse a message of that length, in which case nothing is encrypted and -1 is returned
+    //Returns the length of the encrypted message
+    public int encryptInto(ByteBuffer in, IntFunction<ByteBuffer> allocate) throws Exception {
+        this.lock.lock();
+        try {
+            int length = this.encryptedLength(in.remaining());
+            ByteBuffer out = allocate.apply(length);
+            if (out == null) {
+                return -1;
+            }
+            int encrypted = this.encrypt(in, out);
+            if (encrypted != length) {
+                throw new IllegalStateException("Encrypted " + encrypted + " bytes where " + length + " were expected");
+            }
+            return encrypted;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //The length of a message of the given length once encrypted with all of the keys
+    public int encryptedLength(int length) {
+        this.lock.lock();
+        try {
+            if (this.session != null) {
+                return Session.sealedLength(length);
+            }
+            for (int i = 0; i < this.keys.size(); ++i) {
+                length = AES.encryptedLength(length);
+            }
+            return length;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Releases the cipher contexts held for each key, after which nothing more can be encrypted or decrypted
+    public void close() {
+        this.lock.lock();
+        try {
+            this.closed = true;
+            for (KeyContext key : this.keys) {
+                key.close();
+            }
+            this.keys.clear();
+            this.secrets.clear();
+            this.session = null;
+            this.sessionSecrets = 0;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Switches to session mode: every secret agreed so far is combined into one session key, and each message is then
+    //encrypted once with AES-GCM instead of once per key. Both ends must switch at the same point in the conversation, with
+    //opposite values of server so that they never send with the same nonce. Calling this again after further key exchanges rekeys,
+    //but calling it again without one is refused: the new session would restart its counters under the same key, and so reuse nonces.
+    public void enableSessionMode(boolean server) throws Exception {
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (this.secrets.isEmpty()) {
+                throw new IllegalStateException("No keys have been agreed upon.");
+            }
+            if (this.secrets.size() == this.sessionSecrets) {
+                throw new IllegalStateException("No keys have been agreed upon since the session key was derived.");
+            }
+            byte[] key = Session.deriveKey(this.secrets);
+            if (this.session != null && MessageDigest.isEqual(key, this.session.key.getEncoded())) {
+                throw new IllegalStateException("The new session key is the same as the old one.");
+            }
+            this.session = new Session(key, server);
+            this.sessionSecrets = this.secrets.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Whether session mode can be enabled, or the session rekeyed: a key must have been agreed since the session key was last derived
+    public boolean canEnableSessionMode() {
+        this.lock.lock();
+        try {
+            return !this.closed && this.secrets.size() > this.sessionSecrets;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Derives a secret from every key agreed so far, from which a later connection can derive a fresh key without a key exchange
+    //(see resume). Both ends derive the same secret, which must be kept as carefully as the keys themselves.
+    public byte[] getResumptionSecret() throws Exception {
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (this.secrets.isEmpty()) {
+                throw new IllegalStateException("No keys have been agreed upon.");
+            }
+            return derive(resumptionSalt, this.secrets, resumptionInfo, 32);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Proves that whoever presents a ticket holds the resumption secret sealed inside it, so that a ticket seen on the wire
+    //cannot be used on its own. The client sends it along with the ticket and its nonce, and the server checks it.
+    public static byte[] getResumptionBinder(byte[] secret, byte[] ticket, byte[] clientNonce) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        mac.update(binderLabel);
+        mac.update(clientNonce);
+        mac.update(ticket);
+        return mac.doFinal();
+    }
+
+    //Resumes an earlier connection in place of a key exchange. The only key is derived from the earlier connection's resumption
+    //secret and a nonce chosen by each end, so no key is ever used on two connections. Must be called before any key is agreed.
+    public void resume(byte[] secret, byte[] clientNonce, byte[] serverNonce) throws Exception {
+        ArrayList<byte[]> inputs = new ArrayList<byte[]>();
+        inputs.add(secret);
+        inputs.add(clientNonce);
+        inputs.add(serverNonce);
+        byte[] resumed = derive(resumptionSalt, inputs, resumedInfo, 32);
+        KeyContext key = new KeyContext(shorten(resumed, 16));
+        this.lock.lock();
+        try {
+            this.checkOpen();
+            if (!this.secrets.isEmpty()) {
+                key.close();
+                throw new IllegalStateException("Keys have already been agreed upon.");
+            }
+            this.keys.add(key);
+            this.secrets.add(resumed);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Whether messages are encrypted with the session key rather than layered keys
+    public boolean isSessionMode() {
+        this.lock.lock();
+        try {
+            return this.session != null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Whether at least one key has been agreed upon with the other end
+    public boolean hasKeys() {
+        this.lock.lock();
+        try {
+            return !this.secrets.isEmpty();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    //Describes the cipher provider in use, and why OpenSSL is not used if it was unavailable
+    //Calling this at startup also makes sure the provider is chosen before the first handshake
+    public static String getCipherProvider() {
+        return AES.provider == CipherProvider.OPENSSL ? "OpenSSL"
+                : "JCE" + (AES.fallbackReason == null ? "" : " (" + AES.fallbackReason + ")");
+    }
+
+    /*
+     * AES Encryption
+     */
+    private static class AES {
+        //The type of encryption to use
+        final static String type = "AES/CBC/PKCS5Padding";
+        final static int blockSize = 16;
+
+        //Why the OpenSSL provider could not be used, if it was probed and failed
+        static String fallbackReason;
+
+        //The provider used for every cipher, chosen once by the securechat.cipherProvider property:
+        //"openssl" or "jce" force a provider, while "auto" (the default) uses OpenSSL when its native library loads and JCE otherwise
+        final static CipherProvider provider = probeProvider(System.getProperty("securechat.cipherProvider", "auto"));
+
+        private static CipherProvider probeProvider(String requested) {
+            if (requested.equalsIgnoreCase("jce")) {
+                return CipherProvider.JCE;
+            }
+            try {
+                getCipherInstance(CipherProvider.OPENSSL).close();
+                return CipherProvider.OPENSSL;
+            } catch (Exception e) {
+                Throwable cause = e;
+                while (cause.getCause() != null) {
+                    cause = cause.getCause();
+                }
+                fallbackReason = "OpenSSL unavailable: " + cause;
+                if (requested.equalsIgnoreCase("openssl")) {
+                    throw new IllegalStateException("The OpenSSL cipher provider was requested but is unavailable.", e);
+                }
+                return CipherProvider.JCE;
+            }
+        }
+
+        private static CryptoCipher getCipherInstance(CipherProvider provider) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty(CryptoCipherFactory.CLASSES_KEY, provider.getClassName());
+            return Utils.getCipherInstance(type, properties);
+        }
+
+        //Creates a cipher initialized for one direction with the given key, which is also used as the IV
+        static CryptoCipher newCipher(int mode, SecretKeySpec key, IvParameterSpec iv) throws Exception {
+            CryptoCipher cipher = getCipherInstance(provider);
+            cipher.init(mode, key, iv);
+            return cipher;
+        }
+
+        //JCE returns a cipher to its initialized state after doFinal, while OpenSSL has to be initialized again
+        static boolean resetsAfterFinal() {
+            return provider == CipherProvider.JCE;
+        }
+
+        //Allocates a buffer suited to the provider: direct for OpenSSL, which requires it, and heap for JCE, which copies direct buffers
+        static ByteBuffer allocate(int capacity) {
+            return provider == CipherProvider.OPENSSL ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+
+        //Whether the provider can work on the given buffers in place; OpenSSL can only work on direct buffers
+        static boolean accepts(ByteBuffer in, ByteBuffer out) {
+            return provider != CipherProvider.OPENSSL || (in.isDirect() && out.isDirect());
+        }
+
+        //The length of data of the given length once encrypted and padded
+        static int encryptedLength(int length) {
+            return (length / blockSize + 1) * blockSize;
+        }
+    }
+
+    //The cipher contexts for a single key, initialized once when the key is agreed upon and reused for every message
+    private static class KeyContext {
+        final SecretKeySpec keySpec;
+        final IvParameterSpec iv;
+        final CryptoCipher encryptor;
+        final CryptoCipher decryptor;
+
+        KeyContext(byte[] key) throws Exception {
+            this.keySpec = new SecretKeySpec(key, "AES");
+            this.iv = new IvParameterSpec(key);
+            this.encryptor = AES.newCipher(Cipher.ENCRYPT_MODE, this.keySpec, this.iv);
+            this.decryptor = AES.newCipher(Cipher.DECRYPT_MODE, this.keySpec, this.iv);
+        }
+
+        int encrypt(byte[] in, int offset, int length, byte[] out, int outOffset) throws Exception {
+            this.reset(this.encryptor, Cipher.ENCRYPT_MODE);
+            return this.encryptor.doFinal(in, offset, length, out, outOffset);
+        }
+
+        int decrypt(byte[] in, int offset, int length, byte[] out, int outOffset) throws Exception {
+            this.reset(this.decryptor, Cipher.DECRYPT_MODE);
+            return this.decryptor.doFinal(in, offset, length, out, outOffset);
+        }
+
+        int encrypt(ByteBuffer in, ByteBuffer out) throws Exception {
+            this.reset(this.encryptor, Cipher.ENCRYPT_MODE);
+            if (!AES.accepts(in, out)) {
+                return throughArrays(this.encryptor, in, out, AES.encryptedLength(in.remaining()));
+            }
+            return this.encryptor.doFinal(in, out);
+        }
+
+        int decrypt(ByteBuffer in, ByteBuffer out) throws Exception {
+            this.reset(this.decryptor, Cipher.DECRYPT_MODE);
+            if (!AES.accepts(in, out)) {
+                return throughArrays(this.decryptor, in, out, in.remaining());
+            }
+            return this.decryptor.doFinal(in, out);
+        }
+
+        //Runs a cipher over buffers the provider cannot work on directly, such as a wrapped array given to OpenSSL, by copying them
+        private static int throughArrays(CryptoCipher cipher, ByteBuffer in, ByteBuffer out, int maxLength) throws Exception {
+            byte[] input = new byte[in.remaining()];
+            in.get(input);
+            byte[] output = new byte[maxLength];
+            int length = cipher.doFinal(input, 0, input.length, output, 0);
+            out.put(output, 0, length);
+            return length;
+        }
+
+        private void reset(CryptoCipher cipher, int mode) throws Exception {
+            if (!AES.resetsAfterFinal()) {
+                cipher.init(mode, this.keySpec, this.iv);
+            }
+        }
+
+        void close() {
+            try {
+                this.encryptor.close();
+                this.decryptor.close();
+            } catch (IOException e) {
+                //Nothing useful can be done if a cipher fails to close
+            }
+        }
+    }
+
+    /*
+     * Session Mode
+     *
+     * A sealed message is an 8 byte counter followed by the AES-GCM ciphertext and tag. The nonce is a 4 byte direction followed by
+     * the counter, so the two ends never share a nonce, and a message is only accepted if its counter is higher than the last one.
+     */
+    private static class Session {
+        final static String type = "AES/GCM/NoPadding";
+        final static int counterLength = 8;
+        final static int tagLength = 16;
+        final static byte[] salt = "SecureChat session salt".getBytes(StandardCharsets.US_ASCII);
+        final static byte[] info = "SecureChat AES-GCM key".getBytes(StandardCharsets.US_ASCII);
+
+        final SecretKeySpec key;
+        final Cipher encryptor;
+        final Cipher decryptor;
+        final byte[] sendNonce = new byte[12];
+        final byte[] receiveNonce = new byte[12];
+        long sendCounter;
+        long receiveCounter = -1;
+
+        Session(byte[] key, boolean server) throws Exception {
+            this.key = new SecretKeySpec(key, "AES");
+            this.encryptor = Cipher.getInstance(type);
+            this.decryptor = Cipher.getInstance(type);
+            this.sendNonce[3] = (byte) (server ? 1 : 2);
+            this.receiveNonce[3] = (byte) (server ? 2 : 1);
+        }
+
+        //Derives a 128 bit key from every agreed secret, in order, with HKDF-SHA256
+        static byte[] deriveKey(ArrayList<byte[]> secrets) throws Exception {
+            return derive(salt, secrets, info, 16);
+        }
+
+        static int sealedLength(int length) {
+            return counterLength + length + tagLength;
+        }
+
+        int seal(byte[] in, int offset, int length, byte[] out, int outOffset) throws Exception {
+            long counter = this.nextCounter();
+            for (int i = 0; i < counterLength; ++i) {
+                out[outOffset + i] = (byte) (counter >>> (56 - 8 * i));
+            }
+            this.encryptor.init(Cipher.ENCRYPT_MODE, this.key, this.nonce(this.sendNonce, counter));
+            return counterLength + this.encryptor.doFinal(in, offset, length, out, outOffset + counterLength);
+        }
+
+        int open(byte[] in, int offset, int length, byte[] out, int outOffset) throws Exception {
+            if (length < counterLength + tagLength) {
+                throw new AEADBadTagException("The message is too short to have been sealed.");
+            }
+            long counter = 0;
+            for (int i = 0; i < counterLength; ++i) {
+                counter = counter << 8 | (in[offset + i] & 0xFF);
+            }
+            this.checkCounter(counter);
+            this.decryptor.init(Cipher.DECRYPT_MODE, this.key, this.nonce(this.receiveNonce, counter));
+            int opened = this.decryptor.doFinal(in, offset + counterLength, length - counterLength, out, outOffset);
+            this.receiveCounter = counter;
+            return opened;
+        }
+
+        int seal(ByteBuffer in, ByteBuffer out) throws Exception {
+            long counter = this.nextCounter();
+            out.putLong(counter);
+            this.encryptor.init(Cipher.ENCRYPT_MODE, this.key, this.nonce(this.sendNonce, counter));
+            return counterLength + this.encryptor.doFinal(in, out);
+        }
+
+        int open(ByteBuffer in, ByteBuffer out) throws Exception {
+            if (in.remaining() < counterLength + tagLength) {
+                throw new AEADBadTagException("The message is too short to have been sealed.");
+            }
+            long counter = in.getLong();
+            this.checkCounter(counter);
+            this.decryptor.init(Cipher.DECRYPT_MODE, this.key, this.nonce(this.receiveNonce, counter));
+            int opened = this.decryptor.doFinal(in, out);
+            this.receiveCounter = counter;
+            return opened;
+        }
+
+        private long nextCounter() {
+            if (this.sendCounter < 0) {
+                throw new IllegalStateException("The session has sent too many messages and must be rekeyed.");
+            }
+            return this.sendCounter++;
+        }
+
+        private void checkCounter(long counter) throws AEADBadTagException {
+            if (counter <= this.receiveCounter) {
+                throw new AEADBadTagException("The message has been replayed or reordered.");
+            }
+        }
+
+        private GCMParameterSpec nonce(byte[] nonce, long counter) {
+            for (int i = 0; i < counterLength; ++i) {
+                nonce[4 + i] = (byte) (counter >>> (56 - 8 * i));
+            }
+            return new GCMParameterSpec(tagLength * 8, nonce);
+        }
+    }
+
+    //Makes sure a closed connection never passes messages through unencrypted
+    private void checkOpen() {
+        if (this.closed) {
+            throw new IllegalStateException("The secure connection has been closed.");
+        }
+    }
+
+    //Returns one of the reusable scratch buffers, grown to at least the given length
+    //Buffers 0 and 1 hold the output of intermediate layers, buffer 2 holds decrypted messages before they are copied out
+    private byte[] scratch(int index, int length) {
+        if (this.scratch[index].length < length) {
+            this.scratch[index] = new byte[Math.max(length, this.scratch[index].length * 2)];
+        }
+        return this.scratch[index];
+    }
+
+    //Returns one of the reusable scratch buffers for the ByteBuffer methods, cleared and with room for at least the given length
+    private ByteBuffer scratchBuffer(int index, int length) {
+        if (this.scratchBuffers[index] == null || this.scratchBuffers[index].capacity() < length) {
+            int capacity = this.scratchBuffers[index] == null ? 1024 : this.scratchBuffers[index].capacity() * 2;
+            this.scratchBuffers[index] = AES.allocate(Math.max(length, capacity));
+        }
+        this.scratchBuffers[index].clear();
+        return this.scratchBuffers[index];
+    }
+
+    //Derives up to 32 bytes from a list of inputs, each prefixed with its length, with HKDF-SHA256
+    private static byte[] derive(byte[] salt, ArrayList<byte[]> inputs, byte[] info, int length) throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(salt, "HmacSHA256"));
+        for (byte[] input : inputs) {
+            mac.update(new byte[] {(byte) (input.length >>> 24), (byte) (input.length >>> 16),
+                    (byte) (input.length >>> 8), (byte) input.length});
+            mac.update(input);
+        }
+        mac.init(new SecretKeySpec(mac.doFinal(), "HmacSHA256"));
+        mac.update(info);
+        mac.update((byte) 1);
+        return shorten(mac.doFinal(), length);
+    }
+
+    //Shortens a byte array down to the specified length
+    private static byte[] shorten(byte[] data, int lengthOfData) {
+        byte[] returnVal = new byte[lengthOfData];
+        System.arraycopy(data, 0, returnVal, 0, returnVal.length);
+        return returnVal;
+    }
+
+    /*
+     * Key Management
+     *
+     * Some of the following code was adopted from:
+     *   http://docs.oracle.com/javase/7/docs/technotes/guides/security/crypto/CryptoSpec.html#DH2Ex
+     * Oracle and/or its affiliates own the rights to what they created of the following.
+     *
+     * Copyright (c) 1997, 2001, Oracle and/or its affiliates. All rights reserved.
+     *
+     * Redistribution and use in source and binary forms, with or without
+     * modification, are permitted provided that the following conditions
+     * are met:
+     *
+     *   - Redistributions of source code must retain the above copyright
+     *     notice, this list of conditions and the following disclaimer.
+     *
+     *   - Redistributions in binary form must reproduce the above copyright
+     *     notice, this list of conditions and the following disclaimer in the
+     *     documentation and/or other materials provided with the distribution.
+     *
+     *   - Neither the name of Oracle nor the names of its
+     *     contributors may be used to endorse or promote products derived
+     *     from this software without specific prior written permission.
+     *
+     * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS
+     * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+     * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+     * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+     * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+     * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+     * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+     * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+     * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+     * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+     * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+     */
+    private final static byte[] resumptionSalt = "SecureChat resumption salt".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] resumptionInfo = "SecureChat resumption secret".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] resumedInfo = "SecureChat resumed key".getBytes(StandardCharsets.US_ASCII);
+    private final static byte[] binderLabel = "SecureChat resumption binder".getBytes(StandardCharsets.US_ASCII);
+
+    private final ArrayList<KeyContext> keys = new ArrayList<KeyContext>();
+    private final ArrayList<byte[]> secrets = new ArrayList<byte[]>();
+    private Session session;
+    //How many secrets the session key was derived from
+    private int sessionSecrets;
+    private final byte[][] scratch = {new byte[1024], new byte[1024], new byte[1024]};
+    private final ByteBuffer[] scratchBuffers = new ByteBuffer[2];
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean closed;
+    private KeyAgreement keyAgree;
+
+    public byte[] getPublicKey() throws Exception {
+        return this.getPublicKey(1024);
+    }
+
+    public byte[] getPublicKey(int size) throws Exception {
+        DHParameterSpec dhParamSpec = DHKeyPool.getParameters(size);
+        return this.getPublicKeyStep2(dhParamSpec);
+    }
+
+    public byte[] getPublicKey(byte[] otherPubKeyBytes) throws Exception {
+        KeyFactory keyFac = KeyFactory.getInstance("DH");
+        X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(otherPubKeyBytes);
+        PublicKey otherPubKey = keyFac.generatePublic(x509KeySpec);
+        DHParameterSpec dhParamSpec = ((DHPublicKey) otherPubKey).getParams();
+        return this.getPublicKeyStep2(dhParamSpec);
+    }
+
+    private byte[] getPublicKeyStep2(DHParameterSpec dhParamSpec) throws Exception {
+        KeyPair keyPair = DHKeyPool.getKeyPair(dhParamSpec);
+        this.keyAgree = KeyAgreement.getInstance("DH");
+        this.keyAgree.init(keyPair.getPrivate());
+        return keyPair.getPublic().getEncoded();
+    }
+
+    private byte[] generateSecret(byte[] otherPubKeyBytes) throws Exception {
+        KeyFactory keyFac = KeyFactory.getInstance("DH");
+        X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec(otherPubKeyBytes);
+        PublicKey otherPubKey = keyFac.generatePublic(x509KeySpec);
+        this.keyAgree.doPhase(otherPubKey, true);
+        return keyAgree.generateSecret();
+    }
+
+    //Called when the other end's public key is received
+    public void processOtherPubKey(byte[] otherPubKeyBytes) throws Exception {
+        byte[] secret = this.generateSecret(otherPubKeyBytes);
+        KeyContext key = new KeyContext(shorten(secret, 16));
+        this.lock.lock();
+        try {
+            this.keys.add(key);
+            this.secrets.add(secret);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
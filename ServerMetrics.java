@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and latency histograms for the server's hot paths: connections, handshakes and resumptions, messages and bytes in
+ * each direction, messages discarded by rate limits, encryption and decryption time, broadcast fan-out time, the depth of users'
+ * outbound queues, the memory held by the {@link BufferPool} and the bytes saved by compression. Counters are {@link LongAdder}s
+ * and timings are recorded in {@link LatencyHistogram}s, so recording never takes a lock and costs little more than reading the clock.
+ *
+ * Once installed, the metrics can be read through JMX, as the attributes of the MBean SecureChatServer:type=Metrics, and, when
+ * securechat.metrics.port is set, as plain text in the Prometheus format from http://127.0.0.1:port/metrics. The endpoint only
+ * listens on the loopback interface unless securechat.metrics.host says otherwise. Setting securechat.metrics=false stops anything
+ * being recorded.
+ *
+ * @author David Arena
+ */
+public class ServerMetrics {
+	/**
+	 * Whether metrics are recorded.
+	 */
+	public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("securechat.metrics"));
+
+	public static final int PORT = Integer.getInteger("securechat.metrics.port", 0);
+	public static final String HOST = System.getProperty("securechat.metrics.host", "127.0.0.1");
+
+	private static final Logger logger = Logger.getLogger(SecureChatServer.class.getName());
+	private static final TypeOfData[] TYPES = TypeOfData.values();
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private static final LongAdder connections = new LongAdder();
+	private static final LongAdder[] messagesIn = adders(TYPES.length);
+	private static final LongAdder[] messagesOut = adders(TYPES.length);
+	private static final LongAdder[] rateLimited = adders(TYPES.length);
+	private static final LongAdder[] serverLimited = adders(TYPES.length);
+	private static final LongAdder bytesIn = new LongAdder();
+	private static final LongAdder bytesOut = new LongAdder();
+	private static final LongAdder socketWrites = new LongAdder();
+	private static final LongAdder compressedBytes = new LongAdder();
+	private static final LongAdder resumed = new LongAdder();
+	private static final LongAdder resumptionsRejected = new LongAdder();
+	private static final LongAdder uncompressedBytes = new LongAdder();
+	private static final LatencyHistogram handshakes = new LatencyHistogram();
+	private static final LatencyHistogram encryption = new LatencyHistogram();
+	private static final LatencyHistogram decryption = new LatencyHistogram();
+	private static final LatencyHistogram fanout = new LatencyHistogram();
+	private static volatile UserRegistry users;
+
+	/**
+	 * Makes the metrics of the given users' server available through JMX and, if a port is configured, over HTTP. Failing to do
+	 * either is logged, and leaves the server running without it.
+	 * @param registry the connected users, whose number and queues are reported
+	 */
+	public static void install(UserRegistry registry) {
+		users = registry;
+		if (!ENABLED)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MBean(), new ObjectName("SecureChatServer:type=Metrics"));
+		}
+		catch (Exception e) {
+			logger.log(Level.WARNING, "Metrics could not be registered with JMX: ", e);
+		}
+		if (PORT <= 0)
+			return;
+		try {
+			HttpServer server = HttpServer.create(new InetSocketAddress(HOST, PORT), 0);
+			server.createContext("/metrics", ServerMetrics::scrape);
+			server.start();
+			logger.info("Metrics are available at http://" + HOST + ":" + PORT + "/metrics.");
+		}
+		catch (IOException e) {
+			logger.log(Level.WARNING, "The metrics endpoint could not be opened on port " + PORT + ": ", e);
+		}
+	}
+
+	/**
+	 * @return the time to pass to the methods that record how long something took, or 0 if metrics are disabled
+	 */
+	public static long now() {
+		return ENABLED ? System.nanoTime() : 0;
+	}
+
+	public static void connectionAccepted() {
+		if (ENABLED)
+			connections.increment();
+	}
+
+	/**
+	 * Counts bytes read from a user's connection.
+	 * @param bytes
+	 */
+	public static void read(int bytes) {
+		if (ENABLED)
+			bytesIn.add(bytes);
+	}
+
+	/**
+	 * Counts a message received from a user.
+	 * @param type
+	 */
+	public static void received(TypeOfData type) {
+		if (ENABLED)
+			messagesIn[type.ordinal()].increment();
+	}
+
+	/**
+	 * Counts a message discarded for being over a rate limit.
+	 * @param type
+	 * @param limit whether the connection's limit or the server's was hit
+	 */
+	public static void rateLimited(TypeOfData type, RateLimiter.Limit limit) {
+		if (ENABLED)
+			(limit == RateLimiter.Limit.SERVER ? serverLimited : rateLimited)[type.ordinal()].increment();
+	}
+
+	/**
+	 * Counts a message queued to be sent to a user.
+	 * @param type
+	 * @param bytes the length of the message's frame
+	 */
+	public static void sent(TypeOfData type, int bytes) {
+		if (ENABLED) {
+			messagesOut[type.ordinal()].increment();
+			bytesOut.add(bytes);
+		}
+	}
+
+	/**
+	 * Counts a write to a user's socket, which may carry several queued messages.
+	 */
+	public static void socketWrite() {
+		if (ENABLED)
+			socketWrites.increment();
+	}
+
+	/**
+	 * Counts a message compressed or decompressed for a user.
+	 * @param compressed the length of the message as sent, including the byte saying whether it was deflated
+	 * @param uncompressed the length of the message's text
+	 */
+	public static void compression(int compressed, int uncompressed) {
+		if (ENABLED) {
+			compressedBytes.add(compressed);
+			uncompressedBytes.add(uncompressed);
+		}
+	}
+
+	/**
+	 * Counts an attempt to resume a connection with a session ticket.
+	 * @param accepted whether the ticket was accepted
+	 */
+	public static void resumed(boolean accepted) {
+		if (ENABLED)
+			(accepted ? resumed : resumptionsRejected).increment();
+	}
+
+	/**
+	 * Records a completed key exchange.
+	 * @param start the value of {@link #now()} when it began
+	 */
+	public static void handshake(long start) {
+		if (ENABLED)
+			handshakes.record(System.nanoTime() - start);
+	}
+
+	public static void encrypted(long start) {
+		if (ENABLED)
+			encryption.record(System.nanoTime() - start);
+	}
+
+	public static void decrypted(long start) {
+		if (ENABLED)
+			decryption.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * Records a broadcast whose copies have all been queued for their recipients.
+	 * @param start the value of {@link #now()} when the broadcast was requested
+	 */
+	public static void fannedOut(long start) {
+		if (ENABLED)
+			fanout.record(System.nanoTime() - start);
+	}
+
+	/**
+	 * A single value, named and labelled as in the Prometheus text format.
+	 */
+	private static class Sample {
+		final String family;
+		final String kind;
+		final String name;
+		final String label;
+		final double value;
+
+		Sample(String family, String kind, String name, String label, double value) {
+			this.family = family;
+			this.kind = kind;
+			this.name = name;
+			this.label = label;
+			this.value = value;
+		}
+
+		/**
+		 * @return the name of the sample as a JMX attribute, with the values of its labels appended, each after a dot
+		 */
+		String attribute() {
+			StringBuilder attribute = new StringBuilder(name.substring("securechat_".length()));
+			int open = label == null ? -1 : label.indexOf('"');
+			while (open >= 0) {
+				int close = label.indexOf('"', open + 1);
+				attribute.append('.').append(label, open + 1, close);
+				open = label.indexOf('"', close + 1);
+			}
+			return attribute.toString();
+		}
+	}
+
+	private static List<Sample> collect() {
+		List<Sample> samples = new ArrayList<Sample>();
+		counter(samples, "securechat_connections_accepted_total", null, connections.sum());
+		UserRegistry registry = users;
+		if (registry != null) {
+			long depth = 0, bytes = 0, deepest = 0;
+			for (SecureChatServer.User user : registry) {
+				OutboundQueue queue = user.getOutboundQueue();
+				depth += queue.depth();
+				bytes += queue.bytes();
+				deepest = Math.max(deepest, queue.depth());
+			}
+			gauge(samples, "securechat_connections_active", registry.size());
+			gauge(samples, "securechat_outbound_queued_messages", depth);
+			gauge(samples, "securechat_outbound_queued_bytes", bytes);
+			gauge(samples, "securechat_outbound_deepest_queue_messages", deepest);
+		}
+		gauge(samples, "securechat_buffer_pool_allocated_bytes", BufferPool.allocatedBytes());
+		gauge(samples, "securechat_buffer_pool_free_bytes", BufferPool.pooledBytes());
+		counter(samples, "securechat_outbound_dropped_total", null, OutboundQueue.totalDropped());
+		counter(samples, "securechat_outbound_evicted_total", null, OutboundQueue.totalEvicted());
+		for (TypeOfData type : TYPES)
+			counter(samples, "securechat_messages_in_total", "type=\"" + type + "\"", messagesIn[type.ordinal()].sum());
+		for (TypeOfData type : TYPES) {
+			counter(samples, "securechat_rate_limited_total", "type=\"" + type + "\",limit=\"connection\"", rateLimited[type.ordinal()].sum());
+			counter(samples, "securechat_rate_limited_total", "type=\"" + type + "\",limit=\"server\"", serverLimited[type.ordinal()].sum());
+		}
+		for (TypeOfData type : TYPES)
+			counter(samples, "securechat_messages_out_total", "type=\"" + type + "\"", messagesOut[type.ordinal()].sum());
+		counter(samples, "securechat_bytes_in_total", null, bytesIn.sum());
+		counter(samples, "securechat_bytes_out_total", null, bytesOut.sum());
+		counter(samples, "securechat_socket_writes_total", null, socketWrites.sum());
+		counter(samples, "securechat_compression_input_bytes_total", null, uncompressedBytes.sum());
+		counter(samples, "securechat_compression_output_bytes_total", null, compressedBytes.sum());
+		summary(samples, "securechat_handshake_seconds", handshakes);
+		counter(samples, "securechat_resumptions_total", "result=\"accepted\"", resumed.sum());
+		counter(samples, "securechat_resumptions_total", "result=\"rejected\"", resumptionsRejected.sum());
+		gauge(samples, "securechat_revoked_tickets", SessionTickets.revokedCount());
+		summary(samples, "securechat_encrypt_seconds", encryption);
+		summary(samples, "securechat_decrypt_seconds", decryption);
+		summary(samples, "securechat_broadcast_fanout_seconds", fanout);
+		return samples;
+	}
+
+	private static void counter(List<Sample> samples, String name, String label, long value) {
+		samples.add(new Sample(name, "counter", name, label, value));
+	}
+
+	private static void gauge(List<Sample> samples, String name, long value) {
+		samples.add(new Sample(name, "gauge", name, null, value));
+	}
+
+	private static void summary(List<Sample> samples, String name, LatencyHistogram histogram) {
+		long count = histogram.count();
+		for (double quantile : QUANTILES)
+			samples.add(new Sample(name, "summary", name, "quantile=\"" + quantile + "\"", histogram.percentile(quantile * 100) / 1e9));
+		samples.add(new Sample(name, "summary", name + "_sum", null, histogram.mean() * count / 1e9));
+		samples.add(new Sample(name, "summary", name + "_count", null, count));
+	}
+
+	/**
+	 * @return every metric in the Prometheus text format
+	 */
+	public static String text() {
+		StringBuilder text = new StringBuilder();
+		String family = null;
+		for (Sample sample : collect()) {
+			if (!sample.family.equals(family)) {
+				family = sample.family;
+				text.append("# TYPE ").append(family).append(' ').append(sample.kind).append('\n');
+			}
+			text.append(sample.name);
+			if (sample.label != null)
+				text.append('{').append(sample.label).append('}');
+			text.append(' ');
+			if (sample.value == Math.rint(sample.value) && Math.abs(sample.value) < 1e15)
+				text.append((long) sample.value);
+			else text.append(sample.value);
+			text.append('\n');
+		}
+		return text.toString();
+	}
+
+	private static void scrape(HttpExchange exchange) throws IOException {
+		try {
+			byte[] body = text().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	private static LongAdder[] adders(int count) {
+		LongAdder[] adders = new LongAdder[count];
+		for (int i = 0; i < count; i++)
+			adders[i] = new LongAdder();
+		return adders;
+	}
+
+	/**
+	 * Exposes every sample as a read-only attribute, named after the sample and the value of its label, such as messages_in_total.MESSAGE.
+	 */
+	private static class MBean implements DynamicMBean {
+		public Object getAttribute(String name) throws AttributeNotFoundException {
+			for (Sample sample : collect()) {
+				if (sample.attribute().equals(name))
+					return sample.value;
+			}
+			throw new AttributeNotFoundException(name);
+		}
+
+		public AttributeList getAttributes(String[] names) {
+			AttributeList list = new AttributeList();
+			List<Sample> samples = collect();
+			for (String name : names) {
+				for (Sample sample : samples) {
+					if (sample.attribute().equals(name))
+						list.add(new Attribute(name, sample.value));
+				}
+			}
+			return list;
+		}
+
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			throw new AttributeNotFoundException(attribute.getName() + " is read-only.");
+		}
+
+		public AttributeList setAttributes(AttributeList attributes) {
+			return new AttributeList();
+		}
+
+		public Object invoke(String action, Object[] params, String[] signature) {
+			throw new UnsupportedOperationException(action);
+		}
+
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for (Sample sample : collect())
+				attributes.add(new MBeanAttributeInfo(sample.attribute(), "java.lang.Double", sample.kind, true, false, false));
+			return new MBeanInfo(ServerMetrics.class.getName(), "SecureChatServer metrics", attributes.toArray(new MBeanAttributeInfo[0]),
+					null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+		}
+	}
+}
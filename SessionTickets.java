@@ -0,0 +1,242 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks the tickets that let a user who reconnects resume their earlier connection without a key exchange. A ticket
+ * holds the user's nickname and the resumption secret of their connection (see {@link SecureConnection#getResumptionSecret()}),
+ * sealed with AES-GCM under a server key that only the server holds, so the user can keep it but neither read nor change it.
+ *
+ * The key rotates every securechat.tickets.rotation seconds (an hour by default), and a ticket expires securechat.tickets.lifetime
+ * seconds after it was issued (12 hours by default); keys are forgotten once every ticket sealed with them has expired. Keys are
+ * random unless securechat.tickets.secret is set, in which case each is derived from it, so that servers sharing the secret accept
+ * each other's tickets.
+ *
+ * Each ticket can be used once. A ticket that has been used is revoked by remembering its id until it expires, in a cache bounded
+ * by securechat.tickets.revocationLimit (100000 by default). If the cache is ever full of tickets that have not expired, no ticket
+ * is accepted until some do, and users fall back to a key exchange. The cache belongs to this server alone, so a ticket used here
+ * could still be used once on another server sharing the secret. Setting securechat.tickets=false stops tickets being issued.
+ *
+ * @author David Arena
+ */
+public class SessionTickets {
+	/**
+	 * Whether tickets are issued and accepted.
+	 */
+	public static final boolean ENABLED = !"false".equalsIgnoreCase(System.getProperty("securechat.tickets"));
+	public static final long LIFETIME = TimeUnit.SECONDS.toMillis(Long.getLong("securechat.tickets.lifetime", TimeUnit.HOURS.toSeconds(12)));
+	public static final long ROTATION = TimeUnit.SECONDS.toMillis(Math.max(1, Long.getLong("securechat.tickets.rotation", TimeUnit.HOURS.toSeconds(1))));
+	public static final int REVOCATION_LIMIT = Integer.getInteger("securechat.tickets.revocationLimit", 100000);
+
+	/**
+	 * The length of the nonce each end contributes to a resumed connection's key.
+	 */
+	public static final int NONCE_LENGTH = 32;
+
+	private static final byte VERSION = 1;
+	private static final int ID_LENGTH = 16;
+	private static final int IV_LENGTH = 12;
+	private static final int TAG_LENGTH = 16;
+	private static final int HEADER_LENGTH = 1 + 8 + IV_LENGTH;
+	private static final byte[] KEY_LABEL = "SecureChat ticket key".getBytes(StandardCharsets.US_ASCII);
+
+	private static final SecureRandom random = new SecureRandom();
+	private static final byte[] secret = System.getProperty("securechat.tickets.secret") == null ? null
+			: System.getProperty("securechat.tickets.secret").getBytes(StandardCharsets.UTF_8);
+	private static final Map<Long, SecretKeySpec> keys = new ConcurrentHashMap<Long, SecretKeySpec>();
+	//Ids of used tickets and when they expire, roughly in the order they expire in
+	private static final LinkedHashMap<ByteBuffer, Long> revoked = new LinkedHashMap<ByteBuffer, Long>();
+	private static final ReentrantLock revokedLock = new ReentrantLock();
+	private static long lastFullPurge;
+
+	/**
+	 * The contents of a ticket that has been opened.
+	 */
+	public static final class Ticket {
+		private final byte[] id;
+		private final long expires;
+		private final String nickname;
+		private final byte[] secret;
+
+		private Ticket(byte[] id, long expires, String nickname, byte[] secret) {
+			this.id = id;
+			this.expires = expires;
+			this.nickname = nickname;
+			this.secret = secret;
+		}
+
+		public String getNickname() {
+			return nickname;
+		}
+
+		/**
+		 * @return the resumption secret of the connection the ticket was issued on
+		 */
+		public byte[] getSecret() {
+			return secret;
+		}
+	}
+
+	/**
+	 * Seals a new ticket for a user's connection.
+	 * @param nickname
+	 * @param resumptionSecret
+	 * @return the ticket, to be sent to the user over their encrypted connection
+	 * @throws GeneralSecurityException
+	 */
+	public static byte[] issue(String nickname, byte[] resumptionSecret) throws GeneralSecurityException {
+		long now = System.currentTimeMillis();
+		long epoch = now / ROTATION;
+		byte[] name = nickname.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer contents = ByteBuffer.allocate(ID_LENGTH + 8 + 1 + resumptionSecret.length + name.length);
+		byte[] id = new byte[ID_LENGTH];
+		random.nextBytes(id);
+		contents.put(id).putLong(now + LIFETIME).put((byte) resumptionSecret.length).put(resumptionSecret).put(name).flip();
+
+		ByteBuffer ticket = ByteBuffer.allocate(HEADER_LENGTH + contents.remaining() + TAG_LENGTH);
+		byte[] iv = new byte[IV_LENGTH];
+		random.nextBytes(iv);
+		ticket.put(VERSION).putLong(epoch).put(iv);
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, key(epoch, true), new GCMParameterSpec(TAG_LENGTH * 8, iv));
+		cipher.updateAAD(ticket.array(), 0, 1 + 8);
+		cipher.doFinal(contents, ticket);
+		return ticket.array();
+	}
+
+	/**
+	 * Opens a ticket presented by a user.
+	 * @param ticket
+	 * @return the contents of the ticket, or null if it is malformed, was not sealed by a current key, has expired or has been revoked
+	 */
+	public static Ticket open(byte[] ticket) {
+		if (ticket.length < HEADER_LENGTH + TAG_LENGTH || ticket[0] != VERSION)
+			return null;
+		long now = System.currentTimeMillis();
+		long epoch = ByteBuffer.wrap(ticket, 1, 8).getLong();
+		if (epoch > now / ROTATION || (now - LIFETIME) / ROTATION > epoch)
+			return null;
+		ByteBuffer contents;
+		try {
+			SecretKeySpec key = key(epoch, false);
+			if (key == null)
+				return null;
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG_LENGTH * 8, ticket, 1 + 8, IV_LENGTH));
+			cipher.updateAAD(ticket, 0, 1 + 8);
+			contents = ByteBuffer.wrap(cipher.doFinal(ticket, HEADER_LENGTH, ticket.length - HEADER_LENGTH));
+		}
+		catch (GeneralSecurityException e) {
+			return null;
+		}
+		byte[] id = new byte[ID_LENGTH];
+		contents.get(id);
+		long expires = contents.getLong();
+		byte[] resumptionSecret = new byte[contents.get() & 0xFF];
+		contents.get(resumptionSecret);
+		String nickname = new String(contents.array(), contents.position(), contents.remaining(), StandardCharsets.UTF_8);
+		if (expires <= now || isRevoked(id))
+			return null;
+		return new Ticket(id, expires, nickname, resumptionSecret);
+	}
+
+	/**
+	 * Revokes a ticket, so that it cannot be used again. A ticket must be revoked before it is used to resume a connection,
+	 * so that two connections cannot resume with it at once.
+	 * @param ticket
+	 * @return true if the ticket was revoked, or false if it already had been, or the revocation cache is full and it cannot be used
+	 */
+	public static boolean revoke(Ticket ticket) {
+		long now = System.currentTimeMillis();
+		revokedLock.lock();
+		try {
+			purge(now, false);
+			//Searching the whole cache is only worth doing once in a while, as it is rarely full
+			if (revoked.size() >= REVOCATION_LIMIT && now - lastFullPurge >= 1000) {
+				purge(now, true);
+				lastFullPurge = now;
+			}
+			if (revoked.size() >= REVOCATION_LIMIT)
+				return false;
+			return revoked.putIfAbsent(ByteBuffer.wrap(ticket.id), ticket.expires) == null;
+		}
+		finally {
+			revokedLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of revoked tickets that have not yet been forgotten
+	 */
+	public static int revokedCount() {
+		revokedLock.lock();
+		try {
+			return revoked.size();
+		}
+		finally {
+			revokedLock.unlock();
+		}
+	}
+
+	private static boolean isRevoked(byte[] id) {
+		revokedLock.lock();
+		try {
+			return revoked.containsKey(ByteBuffer.wrap(id));
+		}
+		finally {
+			revokedLock.unlock();
+		}
+	}
+
+	/**
+	 * Forgets revoked tickets that have expired, from the oldest until one that has not, or throughout the cache if all is set.
+	 */
+	private static void purge(long now, boolean all) {
+		Iterator<Long> it = revoked.values().iterator();
+		while (it.hasNext()) {
+			if (it.next() <= now)
+				it.remove();
+			else if (!all)
+				return;
+		}
+	}
+
+	/**
+	 * Returns the key for the given rotation period, creating it if asked to. Keys that can only have sealed expired tickets are
+	 * forgotten whenever a new one is created.
+	 */
+	private static SecretKeySpec key(long epoch, boolean create) throws GeneralSecurityException {
+		SecretKeySpec key = keys.get(epoch);
+		if (key != null || !create && secret == null)
+			return key;
+		byte[] bytes = new byte[16];
+		if (secret != null) {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			mac.update(KEY_LABEL);
+			mac.update(ByteBuffer.allocate(8).putLong(epoch).array());
+			System.arraycopy(mac.doFinal(), 0, bytes, 0, bytes.length);
+		}
+		else random.nextBytes(bytes);
+		SecretKeySpec created = new SecretKeySpec(bytes, "AES");
+		key = keys.putIfAbsent(epoch, created);
+		if (key == null) {
+			key = created;
+			long oldest = (System.currentTimeMillis() - LIFETIME) / ROTATION;
+			keys.keySet().removeIf(e -> e < oldest);
+		}
+		return key;
+	}
+}
@@ -0,0 +1,33 @@
+/**
+ * An enumerated type where each member corresponds to the ordinal of the first byte of an incoming message.
+ * These represent the different types of communication the user has with the server (e.g. sending a regular message, requesting public keys,
+ * indicating that the user is going to disconnect, etc.)
+ * New members are only ever added to the end, so the ordinals understood by existing clients never change.
+ * 
+ * SESSION_MODE asks the server to switch the user's SecureConnection to a single AES-GCM pass keyed from every key exchange so far.
+ * Its contents are the requested mode ("AEAD"); the server echoes them back once every later MESSAGE it sends uses that mode.
+ * The user must not send further MESSAGEs until the echo arrives.
+ * Asking again rekeys the session, but only after a further key exchange; otherwise the server replies INVALID_SESSION_MODE.
+ * 
+ * JOIN_ROOM moves the user into the named room (see {@link ChatRoom}), after which their MESSAGEs only reach that room's members,
+ * and LEAVE_ROOM moves them back to the lobby. The server confirms either by replying JOIN_ROOM with the name of the user's room.
+ * LIST_ROOMS asks for the rooms in use, and is answered with a LIST_ROOMS message of "name:members" pairs separated by commas.
+ * 
+ * COMPRESSION turns compression of the user's MESSAGEs on ("DEFLATE") or off ("NONE"), as described in {@link MessageCompressor}.
+ * Every MESSAGE the user sends after the request is compressed before it is encrypted, and the server echoes the request back once
+ * every later MESSAGE it sends is compressed too.
+ * 
+ * SESSION_TICKET asks the server for tickets (see {@link SessionTickets}), with which the user can RESUME on a later connection
+ * instead of setting their nickname and exchanging keys. Once asked, the server sends a SESSION_TICKET holding a new ticket,
+ * encrypted, whenever the user has keys and a nickname, and again after each key exchange and nickname change.
+ * RESUME must be the first message on a connection, and holds a 32 byte nonce, the binder proving the user holds the ticket's
+ * secret (see {@link SecureConnection#getResumptionBinder}), and the ticket. The server answers RESUME with its own 32 byte nonce
+ * followed by a new ticket, encrypted with the key both ends then derive from the secret and the nonces; if the ticket cannot be
+ * used, the user is sent an INVALID_TICKET server message and continues as if they had just connected.
+ *
+ * @author David Arena
+ */
+enum TypeOfData {
+	MESSAGE, DH_PUB_KEY, NICKNAME, SERVER_MESSAGE, SESSION_MODE, JOIN_ROOM, LEAVE_ROOM, LIST_ROOMS, COMPRESSION, SESSION_TICKET, RESUME
+}
+
@@ -0,0 +1,120 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The users connected to the server, and the nicknames they hold. Joining, leaving and nickname checks are constant time and safe
+ * from any thread: members are kept in a concurrent set, and each nickname maps to the single user holding it, so a nickname is
+ * claimed with one atomic operation rather than a check followed by an update.
+ *
+ * Iterating the registry, as broadcasts do, walks an immutable snapshot of the members without taking any lock. The snapshot is
+ * copied only when the first iteration after a join or leave asks for it, so a burst of joins costs one copy rather than one each.
+ *
+ * @author David Arena
+ */
+public class UserRegistry implements Iterable<SecureChatServer.User> {
+	private final Set<SecureChatServer.User> members = ConcurrentHashMap.newKeySet();
+	private final ConcurrentHashMap<String, SecureChatServer.User> nicknames = new ConcurrentHashMap<String, SecureChatServer.User>();
+	private final AtomicLong version = new AtomicLong();
+	private volatile Snapshot snapshot = new Snapshot(0, new SecureChatServer.User[0]);
+
+	private static class Snapshot {
+		final long version;
+		final SecureChatServer.User[] users;
+
+		Snapshot(long version, SecureChatServer.User[] users) {
+			this.version = version;
+			this.users = users;
+		}
+	}
+
+	/**
+	 * Adds a newly connected user.
+	 * @param user
+	 */
+	public void add(SecureChatServer.User user) {
+		if (members.add(user))
+			version.incrementAndGet();
+	}
+
+	/**
+	 * Removes a user, releasing their nickname if they hold one.
+	 * @param user
+	 */
+	public void remove(SecureChatServer.User user) {
+		if (members.remove(user))
+			version.incrementAndGet();
+		String nickname = user.getNickname();
+		if (nickname != null)
+			nicknames.remove(nickname, user);
+	}
+
+	/**
+	 * Claims a nickname for a user, unless another user already holds it.
+	 * @param nickname
+	 * @param user
+	 * @return true if the user now holds the nickname
+	 */
+	public boolean reserve(String nickname, SecureChatServer.User user) {
+		SecureChatServer.User holder = nicknames.putIfAbsent(nickname, user);
+		return holder == null || holder == user;
+	}
+
+	/**
+	 * Releases a nickname, if it is held by the given user.
+	 * @param nickname
+	 * @param user
+	 */
+	public void release(String nickname, SecureChatServer.User user) {
+		nicknames.remove(nickname, user);
+	}
+
+	/**
+	 * @param nickname
+	 * @return true if a user holds the nickname
+	 */
+	public boolean isTaken(String nickname) {
+		return nicknames.containsKey(nickname);
+	}
+
+	/**
+	 * @param nickname
+	 * @return the user holding the nickname, or null if no one does
+	 */
+	public SecureChatServer.User get(String nickname) {
+		return nicknames.get(nickname);
+	}
+
+	/**
+	 * @return the nicknames currently held, as a live view
+	 */
+	public Set<String> nicknames() {
+		return nicknames.keySet();
+	}
+
+	/**
+	 * @return the number of connected users
+	 */
+	public int size() {
+		return members.size();
+	}
+
+	/**
+	 * Returns the connected users as of the last join or leave. Users who join or leave during iteration are not reflected.
+	 */
+	public Iterator<SecureChatServer.User> iterator() {
+		return Arrays.asList(snapshot()).iterator();
+	}
+
+	private SecureChatServer.User[] snapshot() {
+		Snapshot current = snapshot;
+		long latest = version.get();
+		if (current.version == latest)
+			return current.users;
+		SecureChatServer.User[] users = members.toArray(new SecureChatServer.User[0]);
+		snapshot = new Snapshot(latest, users);
+		return users;
+	}
+}